@@ -0,0 +1,56 @@
+package com.timgroup.tickets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HashMacGeneratorBenchmark {
+    @Param({"sha1", "sha256", "siphash"})
+    public String algorithm;
+
+    @Param({"sliced", "full"})
+    public String slice;
+
+    @Param({"user", "roles", "json"})
+    public String shape;
+
+    private TicketMacGenerator generator;
+    private String payload;
+
+    @Setup public void setUp() {
+        boolean sliced = slice.equals("sliced");
+        if (algorithm.equals("sha1")) {
+            generator = sliced ? HashMacGenerator.sha1("secret", 0, 4) : HashMacGenerator.sha1("secret");
+        } else if (algorithm.equals("sha256")) {
+            generator = sliced ? HashMacGenerator.sha256("secret", 0, 4) : HashMacGenerator.sha256("secret");
+        } else if (algorithm.equals("siphash")) {
+            byte[] key = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+            generator = sliced ? new SipHashMacGenerator(key, 0, 4) : new SipHashMacGenerator(key);
+        } else {
+            throw new IllegalArgumentException("Unknown algorithm: " + algorithm);
+        }
+        String marshalled = new TicketFactory(generator).marshal(TicketShapes.create(shape));
+        payload = marshalled.substring(0, marshalled.lastIndexOf(','));
+    }
+
+    @Benchmark public String generateMAC() {
+        return generator.generateMAC(payload);
+    }
+}
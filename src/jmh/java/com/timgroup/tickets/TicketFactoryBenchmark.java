@@ -0,0 +1,100 @@
+package com.timgroup.tickets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TicketFactoryBenchmark {
+    @Param({"user", "roles", "json"})
+    public String shape;
+
+    private TicketFactory ticketFactory;
+    private TicketFactory compressingFactory;
+    private TicketFactory internedFactory;
+    private BinaryTicketCodec binaryCodec;
+    private Ticket ticket;
+    private String marshalled;
+    private byte[] marshalledBytes;
+    private String marshalledBinary;
+    private String marshalledCompressed;
+
+    @Setup public void setUp() {
+        ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+        ticket = TicketShapes.create(shape);
+        marshalled = ticketFactory.marshal(ticket);
+        marshalledBytes = marshalled.getBytes(StandardCharsets.US_ASCII);
+        compressingFactory = ticketFactory.withCompression(256, 64 * 1024);
+        internedFactory = ticketFactory.withValueDictionary(new TicketValueDictionary(1024, 64));
+        marshalledCompressed = compressingFactory.marshal(ticket);
+        binaryCodec = new BinaryTicketCodec(HashMacGenerator.sha1("secret", 0, 4));
+        marshalledBinary = binaryCodec.marshal(ticket);
+    }
+
+    @Benchmark public String marshal() {
+        return ticketFactory.marshal(ticket);
+    }
+
+    @Benchmark public Ticket unmarshal() throws InvalidTicketException {
+        return ticketFactory.unmarshal(marshalled);
+    }
+
+    @Benchmark public Ticket unmarshalBytes() throws InvalidTicketException {
+        return ticketFactory.unmarshal(marshalledBytes, 0, marshalledBytes.length);
+    }
+
+    @Benchmark public String unmarshalLazilyAndReadUser() throws InvalidTicketException {
+        return ticketFactory.unmarshalLazily(marshalled).getOne('u').get();
+    }
+
+    @Benchmark public String unmarshalAndRemarshal() throws InvalidTicketException {
+        return ticketFactory.marshal(ticketFactory.unmarshal(marshalled));
+    }
+
+    @Benchmark public String unmarshalChangeAndRemarshal() throws InvalidTicketException {
+        Ticket unmarshalled = ticketFactory.unmarshal(marshalled);
+        unmarshalled.set('t', "1600000000");
+        return ticketFactory.marshal(unmarshalled);
+    }
+
+    @Benchmark public Ticket unmarshalInterned() throws InvalidTicketException {
+        return internedFactory.unmarshal(marshalled);
+    }
+
+    @Benchmark public String marshalCompressed() {
+        return compressingFactory.marshal(ticket);
+    }
+
+    @Benchmark public Ticket unmarshalCompressed() throws InvalidTicketException {
+        return compressingFactory.unmarshal(marshalledCompressed);
+    }
+
+    @Benchmark public String marshalBinary() {
+        return binaryCodec.marshal(ticket);
+    }
+
+    @Benchmark public Ticket unmarshalBinary() throws InvalidTicketException {
+        return binaryCodec.unmarshal(marshalledBinary);
+    }
+
+    @Benchmark public List<String> split() {
+        return TicketFactory.split(marshalled, ',');
+    }
+}
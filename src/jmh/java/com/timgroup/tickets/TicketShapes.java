@@ -0,0 +1,38 @@
+package com.timgroup.tickets;
+
+final class TicketShapes {
+    static final String USER_ID = "1344808e-5029-489b-9f44-c95923e81da0";
+
+    private TicketShapes() {
+    }
+
+    static Ticket create(String shape) {
+        Ticket ticket = new Ticket();
+        if (shape.equals("user")) {
+            ticket.add('u', USER_ID);
+        } else if (shape.equals("roles")) {
+            ticket.add('u', USER_ID);
+            ticket.add('r', "admin");
+            ticket.add('r', "user");
+            ticket.add('t', "1589546400");
+        } else if (shape.equals("json")) {
+            ticket.add('u', USER_ID);
+            ticket.add('j', json(40));
+        } else {
+            throw new IllegalArgumentException("Unknown ticket shape: " + shape);
+        }
+        return ticket;
+    }
+
+    static String json(int entries) {
+        StringBuilder builder = new StringBuilder("{\"preferences\": [");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append("{\"name\": \"Jos\u00e9 M\u00fcller #").append(i)
+                    .append("\", \"currency\": \"\u20ac\", \"note\": \"a+b=c, 100%\\n\"}");
+        }
+        return builder.append("]}").toString();
+    }
+}
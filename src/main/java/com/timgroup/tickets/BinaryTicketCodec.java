@@ -0,0 +1,232 @@
+package com.timgroup.tickets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * A more compact alternative to the text format of {@link TicketFactory}. Fields are written as a count followed by
+ * length-prefixed entries, the MAC is appended in its binary form, and the whole is encoded as unpadded base64url:
+ * <pre>
+ *   version(1) count(varint) { key(varint) length(varint) value(UTF-8) }* mac
+ * </pre>
+ * Values need no escaping, so every byte of a value costs 4/3 of a character however unusual it is, and
+ * {@link HashMacGenerator} MAC bytes are no longer doubled by hex encoding. As with the text format, values are
+ * grouped by key in the order keys were first added.
+ * <p>
+ * Each ticket has exactly one encoding: input with padding, or with spare bits set in its last character, is
+ * rejected. Values must be well-formed UTF-16, as lone surrogates have no UTF-8 encoding.
+ */
+public final class BinaryTicketCodec implements TicketCodec {
+    private static final byte VERSION = 1;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private static final String BASE64_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+    private final ExtendedMacGenerator macGenerator;
+    private final int maxTicketLength;
+    private final int maxFieldCount;
+    private final int maxValueLength;
+
+    public BinaryTicketCodec(TicketMacGenerator macGenerator) {
+        this(ExtendedMacGenerator.of(macGenerator), Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    private BinaryTicketCodec(ExtendedMacGenerator macGenerator, int maxTicketLength, int maxFieldCount, int maxValueLength) {
+        this.macGenerator = macGenerator;
+        this.maxTicketLength = maxTicketLength;
+        this.maxFieldCount = maxFieldCount;
+        this.maxValueLength = maxValueLength;
+    }
+
+    /**
+     * Returns a codec that works like this one, but rejects input that is longer than {@code maxTicketLength}
+     * characters, or that has more than {@code maxFieldCount} fields or a field value longer than
+     * {@code maxValueLength} bytes, as {@link TicketFactory#withLimits(int, int, int)} does for the text format. The
+     * length is checked before the input is decoded, and the rest before the MAC is calculated.
+     */
+    public BinaryTicketCodec withLimits(int maxTicketLength, int maxFieldCount, int maxValueLength) {
+        if (maxTicketLength <= 0 || maxFieldCount < 0 || maxValueLength < 0) {
+            throw new IllegalArgumentException("Ticket limits must not be negative, and tickets must have room for a MAC");
+        }
+        return new BinaryTicketCodec(macGenerator, maxTicketLength, maxFieldCount, maxValueLength);
+    }
+
+    @Override public long keyGeneration() {
+        return macGenerator.keyGeneration();
+    }
+
+    @Override public String marshal(Ticket ticket) {
+        Output output = new Output();
+        output.write(VERSION);
+        int fieldCount = 0;
+        for (int slot = 0; slot < ticket.keyCount(); slot++) {
+            fieldCount += ticket.valueCount(slot);
+        }
+        output.writeVarint(fieldCount);
+        for (int slot = 0; slot < ticket.keyCount(); slot++) {
+            char key = ticket.keyAt(slot);
+            String[] values = ticket.valuesAt(slot);
+            int valueCount = ticket.valueCount(slot);
+            for (int i = 0; i < valueCount; i++) {
+                checkWellFormed(key, values[i]);
+                byte[] value = values[i].getBytes(StandardCharsets.UTF_8);
+                output.writeVarint(key);
+                output.writeVarint(value.length);
+                output.write(value, 0, value.length);
+            }
+        }
+        byte[] mac = macGenerator.generateMACBytes(output.bytes, 0, output.length);
+        output.write(mac, 0, mac.length);
+        return ENCODER.encodeToString(output.toByteArray());
+    }
+
+    @Override public Ticket unmarshal(String input) throws InvalidTicketException {
+        if (input.length() > maxTicketLength) {
+            throw new InvalidTicketException("Ticket string is longer than " + maxTicketLength + " characters");
+        }
+        byte[] bytes;
+        try {
+            bytes = DECODER.decode(input);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidTicketException("Ticket string is not base64url encoded");
+        }
+        if (!isCanonical(input)) {
+            throw new InvalidTicketException("Ticket string is not canonical base64url");
+        }
+        Input reader = new Input(bytes);
+        if (bytes.length == 0 || reader.read() != VERSION) {
+            throw new InvalidTicketException("Ticket string has an unknown binary format");
+        }
+        int fieldCount = reader.readVarint();
+        if (fieldCount > maxFieldCount) {
+            throw new InvalidTicketException("Ticket has more than " + maxFieldCount + " fields");
+        }
+        int fieldsStart = reader.position;
+        for (int i = 0; i < fieldCount; i++) {
+            reader.readVarint();
+            int length = reader.readVarint();
+            if (length > maxValueLength) {
+                throw new InvalidTicketException("Ticket has a value longer than " + maxValueLength + " bytes");
+            }
+            reader.skip(length);
+        }
+        int payloadEnd = reader.position;
+        if (!macGenerator.verifyMACBytes(bytes, 0, payloadEnd, bytes, payloadEnd, bytes.length - payloadEnd)) {
+            throw new TicketMacMismatchException(ENCODER.encodeToString(Arrays.copyOfRange(bytes, payloadEnd, bytes.length)));
+        }
+        reader.position = fieldsStart;
+        Ticket ticket = new Ticket();
+        for (int i = 0; i < fieldCount; i++) {
+            int key = reader.readVarint();
+            if (key > Character.MAX_VALUE || key == 'x') {
+                throw new InvalidTicketException("Ticket contains invalid key " + key);
+            }
+            int length = reader.readVarint();
+            ticket.add((char) key, new String(bytes, reader.position, length, StandardCharsets.UTF_8));
+            reader.position += length;
+        }
+        return ticket;
+    }
+
+    /**
+     * Whether {@code input} is exactly what the encoder would write for the bytes it decodes to. The decoder ignores
+     * the bits of the last character beyond the last whole byte, and accepts padding, so without this check several
+     * strings would carry the same ticket. Only called on input that decoded.
+     */
+    private static boolean isCanonical(String input) {
+        int length = input.length();
+        if (length == 0) {
+            return true;
+        }
+        if (input.charAt(length - 1) == '=') {
+            return false;
+        }
+        int spareBits = length % 4 == 2 ? 4 : length % 4 == 3 ? 2 : 0;
+        return (BASE64_DIGITS.indexOf(input.charAt(length - 1)) & ((1 << spareBits) - 1)) == 0;
+    }
+
+    private static void checkWellFormed(char key, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                throw new IllegalArgumentException("Value for key '" + key + "' contains a lone surrogate, which has no UTF-8 encoding");
+            }
+        }
+    }
+
+    private static final class Output {
+        byte[] bytes = new byte[64];
+        int length;
+
+        void write(int b) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void write(byte[] source, int offset, int count) {
+            ensureCapacity(count);
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+        }
+
+        void writeVarint(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+
+    private static final class Input {
+        final byte[] bytes;
+        int position;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int read() throws InvalidTicketException {
+            if (position >= bytes.length) {
+                throw new InvalidTicketException("Ticket is truncated");
+            }
+            return bytes[position++];
+        }
+
+        int readVarint() throws InvalidTicketException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = read();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        break;
+                    }
+                    return value;
+                }
+            }
+            throw new InvalidTicketException("Ticket contains an invalid length");
+        }
+
+        void skip(int count) throws InvalidTicketException {
+            if (count > bytes.length - position) {
+                throw new InvalidTicketException("Ticket is truncated");
+            }
+            position += count;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.timgroup.tickets;
+
+/**
+ * Collects the input and generates the MAC in one go when finished, for generators that cannot work incrementally.
+ */
+final class BufferedMacCalculation implements MacCalculation {
+    private final ExtendedMacGenerator macGenerator;
+    private final StringBuilder input = new StringBuilder();
+
+    BufferedMacCalculation(ExtendedMacGenerator macGenerator) {
+        this.macGenerator = macGenerator;
+    }
+
+    @Override public void update(CharSequence chars, int start, int end) {
+        input.append(chars, start, end);
+    }
+
+    @Override public String finish() {
+        return macGenerator.generateMAC(input, 0, input.length());
+    }
+}
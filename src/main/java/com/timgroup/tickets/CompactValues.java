@@ -0,0 +1,85 @@
+package com.timgroup.tickets;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Encodes numbers and UUIDs as a '~' followed by base-64 digits from the URL-safe alphabet, most significant first.
+ * The marker keeps values written some other way, such as decimal numbers, from being read as compact ones. None of
+ * the characters need escaping in the default ticket format. A long takes up to 12 characters, and as few as two,
+ * where its decimal form may take 20; a UUID takes 23 rather than 36.
+ */
+final class CompactValues {
+    private static final char[] DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < DIGITS.length; i++) {
+            VALUES[DIGITS[i]] = (byte) i;
+        }
+    }
+    private static final char MARKER = '~';
+    private static final int LONG_DIGITS = 11;
+
+    private CompactValues() {
+    }
+
+    static String encodeLong(long value) {
+        int length = 1;
+        while (length < LONG_DIGITS && (value >>> (length * 6)) != 0) {
+            length++;
+        }
+        char[] chars = new char[length + 1];
+        chars[0] = MARKER;
+        writeLong(value, chars, 1, length);
+        return new String(chars);
+    }
+
+    static long decodeLong(String value) {
+        int length = value.length() - 1;
+        if (length < 1 || length > LONG_DIGITS || value.charAt(0) != MARKER || (length == LONG_DIGITS && digit(value, 1) > 0xf)) {
+            throw new NumberFormatException("Not a compact long: " + value);
+        }
+        return readLong(value, 1, value.length());
+    }
+
+    static String encodeUuid(UUID value) {
+        char[] chars = new char[LONG_DIGITS * 2 + 1];
+        chars[0] = MARKER;
+        writeLong(value.getMostSignificantBits(), chars, 1, LONG_DIGITS);
+        writeLong(value.getLeastSignificantBits(), chars, LONG_DIGITS + 1, LONG_DIGITS);
+        return new String(chars);
+    }
+
+    static UUID decodeUuid(String value) {
+        if (value.length() != LONG_DIGITS * 2 + 1 || value.charAt(0) != MARKER
+                || digit(value, 1) > 0xf || digit(value, LONG_DIGITS + 1) > 0xf) {
+            throw new IllegalArgumentException("Not a compact UUID: " + value);
+        }
+        return new UUID(readLong(value, 1, LONG_DIGITS + 1), readLong(value, LONG_DIGITS + 1, LONG_DIGITS * 2 + 1));
+    }
+
+    private static void writeLong(long value, char[] chars, int offset, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            chars[i] = DIGITS[(int) (value & 0x3f)];
+            value >>>= 6;
+        }
+    }
+
+    private static long readLong(String value, int start, int end) {
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            result = (result << 6) | digit(value, i);
+        }
+        return result;
+    }
+
+    private static int digit(String value, int index) {
+        char c = value.charAt(index);
+        int digit = c < VALUES.length ? VALUES[c] : -1;
+        if (digit < 0) {
+            throw new NumberFormatException("Not a compact number: " + value);
+        }
+        return digit;
+    }
+}
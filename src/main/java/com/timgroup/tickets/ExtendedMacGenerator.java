@@ -0,0 +1,133 @@
+package com.timgroup.tickets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link TicketMacGenerator} that can also work on ranges of characters and bytes in place and say more about the
+ * MACs it makes. Every method but {@link #generateMAC(String)} has a default in terms of it, which implementations
+ * override where they can do better. Factories, codecs and key rings also accept plain generators, which they adapt
+ * with {@link #of(TicketMacGenerator)} and so only ever call {@code generateMAC(String)} on.
+ */
+public interface ExtendedMacGenerator extends TicketMacGenerator {
+    /**
+     * Returns {@code generator} itself if it is already extended, and otherwise a view of it with the defaults.
+     */
+    static ExtendedMacGenerator of(TicketMacGenerator generator) {
+        if (generator instanceof ExtendedMacGenerator) {
+            return (ExtendedMacGenerator) generator;
+        }
+        return generator::generateMAC;
+    }
+
+    /**
+     * Generates the MAC for the characters of {@code input} from {@code start} (inclusive) to {@code end}
+     * (exclusive). Implementations should override this to avoid copying the range into a new String.
+     */
+    default String generateMAC(CharSequence input, int start, int end) {
+        return generateMAC(input.subSequence(start, end).toString());
+    }
+
+    /**
+     * Starts calculating a MAC over input supplied in pieces. By default the pieces are collected and passed to
+     * {@link #generateMAC(CharSequence, int, int)} when the calculation is finished.
+     */
+    default MacCalculation startMAC() {
+        return new BufferedMacCalculation(this);
+    }
+
+    /**
+     * Generates the MAC for {@code length} bytes of UTF-8 encoded input, starting at {@code offset}.
+     */
+    default String generateMAC(byte[] input, int offset, int length) {
+        return generateMAC(new String(input, offset, length, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Generates the MAC for the UTF-8 encoded bytes remaining in {@code input}, consuming them.
+     */
+    default String generateMAC(ByteBuffer input) {
+        if (input.hasArray()) {
+            String mac = generateMAC(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            input.position(input.limit());
+            return mac;
+        }
+        byte[] bytes = new byte[input.remaining()];
+        input.get(bytes);
+        return generateMAC(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Checks whether the characters of {@code mac} from {@code macStart} to {@code macEnd} are the MAC for the
+     * characters of {@code input} from {@code start} to {@code end}. The comparison takes the same time wherever the
+     * first difference is.
+     */
+    default boolean verifyMAC(CharSequence input, int start, int end, CharSequence mac, int macStart, int macEnd) {
+        String expected = generateMAC(input, start, end);
+        if (expected.length() != macEnd - macStart) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < expected.length(); i++) {
+            difference |= expected.charAt(i) ^ mac.charAt(macStart + i);
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Checks, without calculating anything, whether the characters of {@code mac} from {@code start} to {@code end}
+     * could be a MAC from this generator, so that input of the wrong shape can be rejected before any hashing. By
+     * default anything could be.
+     */
+    default boolean isWellFormedMAC(CharSequence mac, int start, int end) {
+        return true;
+    }
+
+    /**
+     * Whether a valid MAC, the characters of {@code mac} from {@code start} to {@code end}, is one this generator
+     * would still produce, so that the ticket carrying it can be handed out again unchanged. By default every valid
+     * MAC is.
+     */
+    default boolean isCurrentMAC(CharSequence mac, int start, int end) {
+        return true;
+    }
+
+    /**
+     * A number that changes whenever MACs that verified before may stop verifying, such as when a key is retired, so
+     * that caches of verified tickets know to check them again. By default it never changes.
+     */
+    default long keyGeneration() {
+        return 0;
+    }
+
+    /**
+     * Checks a textual MAC against {@code length} bytes of UTF-8 encoded input, starting at {@code offset}.
+     */
+    default boolean verifyMAC(byte[] input, int offset, int length, CharSequence mac, int macStart, int macEnd) {
+        String text = new String(input, offset, length, StandardCharsets.UTF_8);
+        return verifyMAC(text, 0, text.length(), mac, macStart, macEnd);
+    }
+
+    /**
+     * Generates the MAC for {@code length} bytes of input in its most compact binary form. By default this is the
+     * UTF-8 encoding of the textual MAC.
+     */
+    default byte[] generateMACBytes(byte[] input, int offset, int length) {
+        return generateMAC(input, offset, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks a MAC in the form produced by {@link #generateMACBytes(byte[], int, int)}, in constant time.
+     */
+    default boolean verifyMACBytes(byte[] input, int offset, int length, byte[] mac, int macOffset, int macLength) {
+        byte[] expected = generateMACBytes(input, offset, length);
+        if (expected.length != macLength) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < expected.length; i++) {
+            difference |= expected[i] ^ mac[macOffset + i];
+        }
+        return difference == 0;
+    }
+}
@@ -1,18 +1,25 @@
 package com.timgroup.tickets;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.ShortBufferException;
 
-public class HashMacGenerator implements TicketMacGenerator {
+public class HashMacGenerator implements ExtendedMacGenerator {
     private static final Charset UTF8 = Charset.forName("UTF8");
-    private final byte[] secret;
-    private final String algorithm;
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES["0123456789abcdef".charAt(i)] = (byte) i;
+        }
+    }
     private final int sliceOffset;
     private final int sliceLength;
+    private final MacPool macs;
 
     private static int macLength(String algorithm) throws NoSuchAlgorithmException {
         return Mac.getInstance(algorithm).getMacLength();
@@ -67,37 +74,189 @@ public class HashMacGenerator implements TicketMacGenerator {
     }
 
     public HashMacGenerator(byte[] secret, String algorithm) throws NoSuchAlgorithmException {
-        this.secret = secret;
-        this.algorithm = algorithm;
         this.sliceOffset = 0;
         this.sliceLength = macLength(algorithm);
+        this.macs = new MacPool(secret, algorithm, MacPool.defaultMaxIdle());
     }
 
     public HashMacGenerator(byte[] secret, String algorithm, int sliceOffset, int sliceLength) throws NoSuchAlgorithmException {
-        this.secret = secret;
-        this.algorithm = algorithm;
+        this(secret, algorithm, sliceOffset, sliceLength, MacPool.defaultMaxIdle());
+    }
+
+    /**
+     * @param maxIdleMacs how many keyed Mac instances to keep for reuse between calls; zero creates a fresh instance
+     *                    for every call
+     */
+    public HashMacGenerator(byte[] secret, String algorithm, int sliceOffset, int sliceLength, int maxIdleMacs) throws NoSuchAlgorithmException {
         int macLength = macLength(algorithm);
         if (sliceOffset >= macLength || (sliceOffset + sliceLength) >= macLength) {
             throw new IllegalArgumentException("MAC '" + algorithm + "' is only " + macLength + " bytes long");
         }
+        if (maxIdleMacs < 0) {
+            throw new IllegalArgumentException("maxIdleMacs must not be negative");
+        }
         this.sliceOffset = sliceOffset;
         this.sliceLength = sliceLength;
+        this.macs = new MacPool(secret, algorithm, maxIdleMacs);
     }
 
     @Override public String generateMAC(String input) {
-        return encode(calculate(input.getBytes(UTF8)));
+        return generateMAC(input, 0, input.length());
+    }
+
+    @Override public String generateMAC(CharSequence input, int start, int end) {
+        return encodeAndRelease(calculate(input, start, end));
+    }
+
+    @Override public String generateMAC(byte[] input, int offset, int length) {
+        MacPool.Entry entry = macs.acquire();
+        entry.mac.update(input, offset, length);
+        finish(entry);
+        return encodeAndRelease(entry);
+    }
+
+    @Override public String generateMAC(ByteBuffer input) {
+        MacPool.Entry entry = macs.acquire();
+        entry.mac.update(input);
+        finish(entry);
+        return encodeAndRelease(entry);
+    }
+
+    @Override public boolean isWellFormedMAC(CharSequence mac, int start, int end) {
+        if (end - start != sliceLength * 2) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (hexValue(mac.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override public boolean verifyMAC(CharSequence input, int start, int end, CharSequence mac, int macStart, int macEnd) {
+        if (macEnd - macStart != sliceLength * 2) {
+            return false;
+        }
+        return matchesAndRelease(calculate(input, start, end), mac, macStart);
+    }
+
+    @Override public boolean verifyMAC(byte[] input, int offset, int length, CharSequence mac, int macStart, int macEnd) {
+        if (macEnd - macStart != sliceLength * 2) {
+            return false;
+        }
+        MacPool.Entry entry = macs.acquire();
+        entry.mac.update(input, offset, length);
+        finish(entry);
+        return matchesAndRelease(entry, mac, macStart);
+    }
+
+    @Override public byte[] generateMACBytes(byte[] input, int offset, int length) {
+        MacPool.Entry entry = macs.acquire();
+        entry.mac.update(input, offset, length);
+        finish(entry);
+        byte[] result = Arrays.copyOfRange(entry.buffer, sliceOffset, sliceOffset + sliceLength);
+        macs.release(entry);
+        return result;
+    }
+
+    @Override public boolean verifyMACBytes(byte[] input, int offset, int length, byte[] mac, int macOffset, int macLength) {
+        if (macLength != sliceLength) {
+            return false;
+        }
+        MacPool.Entry entry = macs.acquire();
+        entry.mac.update(input, offset, length);
+        finish(entry);
+        int difference = 0;
+        for (int i = 0; i < sliceLength; i++) {
+            difference |= entry.buffer[sliceOffset + i] ^ mac[macOffset + i];
+        }
+        macs.release(entry);
+        return difference == 0;
+    }
+
+    @Override public MacCalculation startMAC() {
+        final MacPool.Entry entry = macs.acquire();
+        return new MacCalculation() {
+            @Override public void update(CharSequence input, int start, int end) {
+                HashMacGenerator.update(entry, input, start, end);
+            }
+
+            @Override public String finish() {
+                HashMacGenerator.finish(entry);
+                return encodeAndRelease(entry);
+            }
+        };
+    }
+
+    private MacPool.Entry calculate(CharSequence input, int start, int end) {
+        MacPool.Entry entry = macs.acquire();
+        update(entry, input, start, end);
+        finish(entry);
+        return entry;
     }
 
-    private byte[] calculate(byte[] inputBytes) {
-        byte[] macResult;
+    private static void update(MacPool.Entry entry, CharSequence input, int start, int end) {
+        Mac mac = entry.mac;
+        byte[] buffer = entry.buffer;
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            if (length > buffer.length - 4) {
+                mac.update(buffer, 0, length);
+                length = 0;
+            }
+            char c = input.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xc0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (!Character.isSurrogate(c)) {
+                buffer[length++] = (byte) (0xe0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(input.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, input.charAt(++i));
+                buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                // unpaired surrogate: substitute as String.getBytes does
+                buffer[length++] = '?';
+            }
+        }
+        mac.update(buffer, 0, length);
+    }
+
+    private static void finish(MacPool.Entry entry) {
         try {
-            Mac mac = Mac.getInstance(algorithm);
-            mac.init(new SecretKeySpec(secret, algorithm));
-            macResult = mac.doFinal(inputBytes);
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException("Unable to use '" + algorithm + "' MAC algorithm", e);
+            entry.mac.doFinal(entry.buffer, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException("MAC does not fit in " + entry.buffer.length + " bytes", e);
         }
-        return macResult;
+    }
+
+    private boolean matchesAndRelease(MacPool.Entry entry, CharSequence mac, int macStart) {
+        byte[] result = entry.buffer;
+        int difference = 0;
+        for (int i = 0; i < sliceLength; i++) {
+            int b = result[sliceOffset + i];
+            difference |= hexValue(mac.charAt(macStart + i * 2)) ^ ((b >> 4) & 0x0f);
+            difference |= hexValue(mac.charAt(macStart + i * 2 + 1)) ^ (b & 0x0f);
+        }
+        macs.release(entry);
+        return difference == 0;
+    }
+
+    static int hexValue(char c) {
+        return c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+    }
+
+    private String encodeAndRelease(MacPool.Entry entry) {
+        String result = encode(entry.buffer);
+        macs.release(entry);
+        return result;
     }
 
     private String encode(byte[] bytes) {
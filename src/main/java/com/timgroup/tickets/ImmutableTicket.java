@@ -0,0 +1,28 @@
+package com.timgroup.tickets;
+
+import java.util.List;
+
+/**
+ * A fully decoded copy of a ticket that rejects changes, and so can be shared between threads.
+ */
+final class ImmutableTicket extends Ticket {
+    ImmutableTicket(Ticket source) {
+        super(source);
+    }
+
+    @Override public void add(char key, String value) {
+        throw new UnsupportedOperationException("Ticket is immutable");
+    }
+
+    @Override public void set(char key, String value) {
+        throw new UnsupportedOperationException("Ticket is immutable");
+    }
+
+    @Override public void set(char key, List<String> value) {
+        throw new UnsupportedOperationException("Ticket is immutable");
+    }
+
+    @Override public void remove(char key) {
+        throw new UnsupportedOperationException("Ticket is immutable");
+    }
+}
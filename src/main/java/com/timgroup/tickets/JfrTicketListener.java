@@ -0,0 +1,131 @@
+package com.timgroup.tickets;
+
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A {@link TicketListener} that emits Java Flight Recorder events, which are cheap unless a recording has them
+ * enabled. This needs a JVM with the {@code jdk.jfr} module (JDK 11, or 8u262 and later); the class is only loaded
+ * when used, so the rest of the library still runs without it. Each event's duration covers the work it reports.
+ */
+public final class JfrTicketListener implements TicketListener {
+    private static final EventType MARSHAL = EventType.getEventType(MarshalEvent.class);
+    private static final EventType UNMARSHAL = EventType.getEventType(UnmarshalEvent.class);
+    private static final EventType MAC = EventType.getEventType(MacEvent.class);
+
+    // events are begun by the before* calls and committed, with their true duration, once the outcome is known
+    private final ThreadLocal<MarshalEvent> marshal = new ThreadLocal<MarshalEvent>();
+    private final ThreadLocal<UnmarshalEvent> unmarshal = new ThreadLocal<UnmarshalEvent>();
+    private final ThreadLocal<MacEvent> mac = new ThreadLocal<MacEvent>();
+
+    @Override public void beforeMarshal() {
+        begin(MARSHAL, marshal, MarshalEvent::new);
+    }
+
+    @Override public void beforeUnmarshal() {
+        begin(UNMARSHAL, unmarshal, UnmarshalEvent::new);
+    }
+
+    @Override public void beforeMAC() {
+        begin(MAC, mac, MacEvent::new);
+    }
+
+    @Override public void marshalled(int ticketLength, long elapsedNanos) {
+        MarshalEvent event = end(marshal);
+        if (event != null) {
+            event.ticketLength = ticketLength;
+            event.commit();
+        }
+    }
+
+    @Override public void unmarshalled(int ticketLength, long elapsedNanos) {
+        unmarshal(ticketLength, "ok");
+    }
+
+    @Override public void rejected(int ticketLength, long elapsedNanos, InvalidTicketException reason) {
+        String outcome;
+        if (reason instanceof TicketMacMismatchException) {
+            outcome = "mac mismatch";
+        } else if (reason instanceof TicketExpiredException) {
+            outcome = "expired";
+        } else {
+            outcome = "malformed";
+        }
+        unmarshal(ticketLength, outcome);
+    }
+
+    @Override public void macComputed(int payloadLength, long elapsedNanos) {
+        MacEvent event = end(mac);
+        if (event != null) {
+            event.payloadLength = payloadLength;
+            event.commit();
+        }
+    }
+
+    private void unmarshal(int ticketLength, String outcome) {
+        UnmarshalEvent event = end(unmarshal);
+        if (event != null) {
+            event.ticketLength = ticketLength;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins an event only if a recording wants that type, so that nothing is allocated or stored otherwise.
+     */
+    private static <T extends Event> void begin(EventType type, ThreadLocal<T> current, Supplier<T> newEvent) {
+        if (type.isEnabled()) {
+            T event = newEvent.get();
+            event.begin();
+            current.set(event);
+        }
+    }
+
+    private static <T extends Event> T end(ThreadLocal<T> current) {
+        T event = current.get();
+        if (event == null) {
+            return null;
+        }
+        current.remove();
+        event.end();
+        // also drops an event left behind by work that threw, if its type has since been disabled
+        return event.shouldCommit() ? event : null;
+    }
+
+    @Name("com.timgroup.tickets.Marshal")
+    @Label("Ticket Marshal")
+    @Category("Tickets")
+    static final class MarshalEvent extends Event {
+        @Label("Ticket Length")
+        @DataAmount(DataAmount.BYTES)
+        int ticketLength;
+    }
+
+    @Name("com.timgroup.tickets.Unmarshal")
+    @Label("Ticket Unmarshal")
+    @Category("Tickets")
+    static final class UnmarshalEvent extends Event {
+        @Label("Ticket Length")
+        @DataAmount(DataAmount.BYTES)
+        int ticketLength;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("com.timgroup.tickets.Mac")
+    @Label("Ticket MAC")
+    @Category("Tickets")
+    static final class MacEvent extends Event {
+        @Label("Payload Length")
+        @DataAmount(DataAmount.BYTES)
+        int payloadLength;
+    }
+}
@@ -0,0 +1,262 @@
+package com.timgroup.tickets;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Supports secret rotation by holding several MAC generators, each under a short key id. MACs are generated with the
+ * signing key and prefixed with its id and a colon, e.g. {@code x2019b:5dbe5337}; verification reads the id back and
+ * computes only that key's MAC, so a ticket signed with an older key costs no more to check than a current one.
+ * <p>
+ * Keys can be added, promoted to signing and retired at any time. Changes replace an immutable snapshot, so
+ * generating and verifying MACs never takes a lock. Retiring a key moves the ring to a new
+ * {@link #keyGeneration()}, which tells a {@link TicketCache} to verify the tickets it holds again.
+ */
+public final class KeyRingMacGenerator implements ExtendedMacGenerator {
+    private static final char KEY_ID_TERMINATOR = ':';
+    private static final int MAX_KEY_ID_LENGTH = 8;
+
+    private volatile Keys keys;
+
+    public KeyRingMacGenerator(String signingKeyId, TicketMacGenerator signingGenerator) {
+        Key key = new Key(checkKeyId(signingKeyId), signingGenerator);
+        this.keys = new Keys(new Key[] { key }, key, 0);
+    }
+
+    /**
+     * Adds a key that will be accepted when verifying, but not used for signing until passed to
+     * {@link #useForSigning(String)}.
+     */
+    public synchronized void addKey(String keyId, TicketMacGenerator generator) {
+        Keys current = keys;
+        if (current.find(keyId, 0, keyId.length()) != null) {
+            throw new IllegalArgumentException("Key '" + keyId + "' is already in the key ring");
+        }
+        Key[] updated = Arrays.copyOf(current.all, current.all.length + 1);
+        updated[current.all.length] = new Key(checkKeyId(keyId), generator);
+        keys = new Keys(updated, current.signing, current.generation);
+    }
+
+    public synchronized void useForSigning(String keyId) {
+        Keys current = keys;
+        Key key = current.find(keyId, 0, keyId.length());
+        if (key == null) {
+            throw new IllegalArgumentException("Key '" + keyId + "' is not in the key ring");
+        }
+        keys = new Keys(current.all, key, current.generation);
+    }
+
+    /**
+     * Removes a key, so that tickets signed with it no longer verify, even those already held by a
+     * {@link TicketCache}. The signing key cannot be retired.
+     */
+    public synchronized void retireKey(String keyId) {
+        Keys current = keys;
+        if (current.signing.id.equals(keyId)) {
+            throw new IllegalArgumentException("Key '" + keyId + "' is used for signing");
+        }
+        List<Key> remaining = new ArrayList<Key>(current.all.length);
+        for (Key key : current.all) {
+            if (!key.id.equals(keyId)) {
+                remaining.add(key);
+            }
+        }
+        keys = new Keys(remaining.toArray(new Key[remaining.size()]), current.signing, current.generation + 1);
+    }
+
+    @Override public long keyGeneration() {
+        return keys.generation;
+    }
+
+    public List<String> keyIds() {
+        List<String> ids = new ArrayList<String>();
+        for (Key key : keys.all) {
+            ids.add(key.id);
+        }
+        return ids;
+    }
+
+    public String signingKeyId() {
+        return keys.signing.id;
+    }
+
+    @Override public String generateMAC(String input) {
+        Key signing = keys.signing;
+        return signing.prefix + signing.generator.generateMAC(input);
+    }
+
+    @Override public String generateMAC(CharSequence input, int start, int end) {
+        Key signing = keys.signing;
+        return signing.prefix + signing.generator.generateMAC(input, start, end);
+    }
+
+    @Override public String generateMAC(byte[] input, int offset, int length) {
+        Key signing = keys.signing;
+        return signing.prefix + signing.generator.generateMAC(input, offset, length);
+    }
+
+    @Override public String generateMAC(ByteBuffer input) {
+        Key signing = keys.signing;
+        return signing.prefix + signing.generator.generateMAC(input);
+    }
+
+    @Override public MacCalculation startMAC() {
+        final Key signing = keys.signing;
+        final MacCalculation calculation = signing.generator.startMAC();
+        return new MacCalculation() {
+            @Override public void update(CharSequence input, int start, int end) {
+                calculation.update(input, start, end);
+            }
+
+            @Override public String finish() {
+                return signing.prefix + calculation.finish();
+            }
+        };
+    }
+
+    @Override public boolean isWellFormedMAC(CharSequence mac, int start, int end) {
+        int limit = Math.min(end, start + MAX_KEY_ID_LENGTH + 1);
+        for (int pos = start; pos < limit; pos++) {
+            if (mac.charAt(pos) == KEY_ID_TERMINATOR) {
+                Key key = keys.find(mac, start, pos);
+                return key != null && key.generator.isWellFormedMAC(mac, pos + 1, end);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Only MACs made with the signing key are current, so that tickets signed with older keys move to the new one
+     * when they are marshalled again.
+     */
+    @Override public boolean isCurrentMAC(CharSequence mac, int start, int end) {
+        Key signing = keys.signing;
+        int idEnd = start + signing.id.length();
+        return idEnd < end && mac.charAt(idEnd) == KEY_ID_TERMINATOR && signing.hasId(mac, start, idEnd);
+    }
+
+    @Override public boolean verifyMAC(CharSequence input, int start, int end, CharSequence mac, int macStart, int macEnd) {
+        int limit = Math.min(macEnd, macStart + MAX_KEY_ID_LENGTH + 1);
+        for (int pos = macStart; pos < limit; pos++) {
+            if (mac.charAt(pos) == KEY_ID_TERMINATOR) {
+                Key key = keys.find(mac, macStart, pos);
+                return key != null && key.generator.verifyMAC(input, start, end, mac, pos + 1, macEnd);
+            }
+        }
+        return false;
+    }
+
+    @Override public boolean verifyMAC(byte[] input, int offset, int length, CharSequence mac, int macStart, int macEnd) {
+        int limit = Math.min(macEnd, macStart + MAX_KEY_ID_LENGTH + 1);
+        for (int pos = macStart; pos < limit; pos++) {
+            if (mac.charAt(pos) == KEY_ID_TERMINATOR) {
+                Key key = keys.find(mac, macStart, pos);
+                return key != null && key.generator.verifyMAC(input, offset, length, mac, pos + 1, macEnd);
+            }
+        }
+        return false;
+    }
+
+    @Override public byte[] generateMACBytes(byte[] input, int offset, int length) {
+        Key signing = keys.signing;
+        byte[] mac = signing.generator.generateMACBytes(input, offset, length);
+        byte[] result = new byte[signing.prefix.length() + mac.length];
+        for (int i = 0; i < signing.prefix.length(); i++) {
+            result[i] = (byte) signing.prefix.charAt(i);
+        }
+        System.arraycopy(mac, 0, result, signing.prefix.length(), mac.length);
+        return result;
+    }
+
+    @Override public boolean verifyMACBytes(byte[] input, int offset, int length, byte[] mac, int macOffset, int macLength) {
+        int limit = Math.min(macLength, MAX_KEY_ID_LENGTH + 1);
+        for (int i = 0; i < limit; i++) {
+            if (mac[macOffset + i] == KEY_ID_TERMINATOR) {
+                Key key = keys.find(mac, macOffset, macOffset + i);
+                return key != null && key.generator.verifyMACBytes(input, offset, length, mac, macOffset + i + 1, macLength - i - 1);
+            }
+        }
+        return false;
+    }
+
+    private static String checkKeyId(String keyId) {
+        if (keyId.isEmpty() || keyId.length() > MAX_KEY_ID_LENGTH) {
+            throw new IllegalArgumentException("Key id must be 1 to " + MAX_KEY_ID_LENGTH + " characters long");
+        }
+        for (int i = 0; i < keyId.length(); i++) {
+            char c = keyId.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9')) {
+                throw new IllegalArgumentException("Key id must only contain ASCII letters and digits: " + keyId);
+            }
+        }
+        return keyId;
+    }
+
+    private static final class Key {
+        final String id;
+        final String prefix;
+        final ExtendedMacGenerator generator;
+
+        Key(String id, TicketMacGenerator generator) {
+            this.id = id;
+            this.prefix = id + KEY_ID_TERMINATOR;
+            this.generator = ExtendedMacGenerator.of(generator);
+        }
+
+        boolean hasId(byte[] input, int start, int end) {
+            if (end - start != id.length()) {
+                return false;
+            }
+            for (int i = 0; i < id.length(); i++) {
+                if (input[start + i] != id.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean hasId(CharSequence input, int start, int end) {
+            if (end - start != id.length()) {
+                return false;
+            }
+            for (int i = 0; i < id.length(); i++) {
+                if (input.charAt(start + i) != id.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Keys {
+        final Key[] all;
+        final Key signing;
+        final long generation;
+
+        Keys(Key[] all, Key signing, long generation) {
+            this.all = all;
+            this.signing = signing;
+            this.generation = generation;
+        }
+
+        Key find(CharSequence input, int start, int end) {
+            for (Key key : all) {
+                if (key.hasId(input, start, end)) {
+                    return key;
+                }
+            }
+            return null;
+        }
+
+        Key find(byte[] input, int start, int end) {
+            for (Key key : all) {
+                if (key.hasId(input, start, end)) {
+                    return key;
+                }
+            }
+            return null;
+        }
+    }
+}
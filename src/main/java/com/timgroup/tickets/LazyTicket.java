@@ -0,0 +1,41 @@
+package com.timgroup.tickets;
+
+import java.util.Arrays;
+
+/**
+ * A ticket whose keys are known up front, but whose values stay as ranges of the verified input until they are read.
+ */
+final class LazyTicket extends Ticket {
+    private final TicketFactory factory;
+    private final String input;
+    private final int[] fields;
+    private final int fieldCount;
+
+    LazyTicket(TicketFactory factory, String input, int[] fields, int fieldCount) {
+        this.factory = factory;
+        this.input = input;
+        this.fields = fields;
+        this.fieldCount = fieldCount;
+        for (int i = 0; i < fieldCount; i++) {
+            addPendingKey(input.charAt(fields[i * 2]));
+        }
+        decodedFrom(factory, input, fields, fieldCount);
+    }
+
+    @Override String[] decodeValues(char key) {
+        String[] values = new String[fieldCount];
+        int count = 0;
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < fieldCount; i++) {
+            int start = fields[i * 2];
+            if (input.charAt(start) == key) {
+                try {
+                    values[count++] = factory.decodeValue(input, start + 1, fields[i * 2 + 1], buffer);
+                } catch (InvalidTicketException e) {
+                    throw new IllegalStateException("Ticket value was checked when unmarshalled", e);
+                }
+            }
+        }
+        return Arrays.copyOf(values, count);
+    }
+}
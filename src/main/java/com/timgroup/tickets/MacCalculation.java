@@ -0,0 +1,11 @@
+package com.timgroup.tickets;
+
+/**
+ * A MAC being calculated over input that arrives in pieces; see {@link ExtendedMacGenerator#startMAC()}. Each
+ * calculation is used by one thread and finished once.
+ */
+public interface MacCalculation {
+    void update(CharSequence input, int start, int end);
+
+    String finish();
+}
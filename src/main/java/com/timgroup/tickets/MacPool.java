@@ -0,0 +1,85 @@
+package com.timgroup.tickets;
+
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps keyed {@link Mac} instances for reuse, so that each calculation skips the provider lookup and key schedule.
+ * Instances are handed out to one caller at a time; nothing is bound to a thread, so this works the same for
+ * platform and virtual threads.
+ */
+final class MacPool {
+    private static final int BUFFER_SIZE = 256;
+
+    private final byte[] secret;
+    private final String algorithm;
+    private final int maxIdle;
+    private final Queue<Entry> idle = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private volatile Mac prototype;
+
+    MacPool(byte[] secret, String algorithm, int maxIdle) {
+        this.secret = secret;
+        this.algorithm = algorithm;
+        this.maxIdle = maxIdle;
+    }
+
+    static int defaultMaxIdle() {
+        return Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    Entry acquire() {
+        Entry entry = idle.poll();
+        if (entry != null) {
+            idleCount.decrementAndGet();
+            return entry;
+        }
+        return new Entry(create(), new byte[BUFFER_SIZE]);
+    }
+
+    void release(Entry entry) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(entry);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    private Mac create() {
+        try {
+            Mac template = prototype;
+            if (template == null) {
+                template = Mac.getInstance(algorithm);
+                template.init(new SecretKeySpec(secret, algorithm));
+                prototype = template;
+            }
+            try {
+                return (Mac) template.clone();
+            } catch (CloneNotSupportedException e) {
+                Mac mac = Mac.getInstance(algorithm);
+                mac.init(new SecretKeySpec(secret, algorithm));
+                return mac;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Unable to use '" + algorithm + "' MAC algorithm", e);
+        }
+    }
+
+    /**
+     * A keyed Mac along with a scratch buffer for feeding it encoded characters.
+     */
+    static final class Entry {
+        final Mac mac;
+        final byte[] buffer;
+
+        Entry(Mac mac, byte[] buffer) {
+            this.mac = mac;
+            this.buffer = buffer;
+        }
+    }
+}
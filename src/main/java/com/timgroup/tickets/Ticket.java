@@ -1,62 +1,441 @@
 package com.timgroup.tickets;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.UUID;
 
+/**
+ * Keys are held in insertion order in a char array, each with its own array of values. Tickets rarely have more than
+ * a handful of keys, so lookups simply scan the keys. Value arrays are only ever appended to or replaced, never
+ * changed in place. The list returned by {@link #get(char)} for a key that has values is a live view of them, and
+ * changes made through it are made to the ticket.
+ * <p>
+ * A ticket unmarshalled from a string remembers it, and which keys have been changed since, so that marshalling it
+ * again can reuse the encoded fields of untouched keys, or the whole string if nothing has changed. Only fields
+ * already encoded exactly as the factory would encode them are reused, so a ticket marshals the same whatever it
+ * was read from.
+ */
 public class Ticket {
-    final Map<Character, List<String>> data = new LinkedHashMap<Character, List<String>>();
+    private static final int INITIAL_CAPACITY = 4;
+
+    private char[] keys;
+    private String[][] values;
+    private int[] valueCounts;
+    private int keyCount;
+    private Source source;
+    private TicketFactory expiryClock;
+    private long expiry;
+
+    public Ticket() {
+    }
+
+    Ticket(Ticket source) {
+        int count = source.keyCount();
+        if (count > 0) {
+            keys = Arrays.copyOf(source.keys, count);
+            values = new String[count][];
+            valueCounts = new int[count];
+            for (int slot = 0; slot < count; slot++) {
+                values[slot] = Arrays.copyOf(source.valuesAt(slot), source.valueCounts[slot]);
+                valueCounts[slot] = values[slot].length;
+            }
+            keyCount = count;
+        }
+        if (source.source != null) {
+            this.source = source.source.copy();
+        }
+        this.expiryClock = source.expiryClock;
+        this.expiry = source.expiry;
+    }
 
     public List<String> get(char key) {
-        if (!data.containsKey(key)) {
+        int slot = slotOf(key);
+        if (slot < 0) {
             return Collections.emptyList();
         }
-        return data.get(key);
+        return new ValueList(key);
     }
 
     public Optional<String> getOne(char key) {
-        if (!data.containsKey(key)) {
+        int slot = slotOf(key);
+        if (slot < 0) {
             return Optional.empty();
         }
-        List<String> list = data.get(key);
-        if (list.isEmpty()) {
+        String[] slotValues = valuesAt(slot);
+        if (valueCounts[slot] == 0) {
             return Optional.empty();
         }
-        return Optional.of(list.get(0));
+        return Optional.of(slotValues[0]);
     }
 
     public Set<Character> keySet() {
-        return data.keySet();
+        return new KeySet();
     }
 
     public void add(char key, String value) {
         if (key == 'x') {
             throw new IllegalArgumentException("key 'x' is reserved for the MAC");
         }
-        List<String> list = data.get(key);
-        if (list == null) {
-            list = new ArrayList<String>();
-            data.put(key, list);
+        int slot = slotOf(key);
+        if (slot < 0) {
+            slot = addKey(key, new String[INITIAL_CAPACITY], 0);
+        }
+        String[] slotValues = valuesAt(slot);
+        int count = valueCounts[slot];
+        if (count == slotValues.length) {
+            slotValues = Arrays.copyOf(slotValues, Math.max(INITIAL_CAPACITY, count * 2));
+            values[slot] = slotValues;
+        }
+        slotValues[count] = value;
+        valueCounts[slot] = count + 1;
+        changed(slot);
+    }
+
+    /**
+     * Removes {@code key} and all of its values; {@code keySet().remove(key)} does the same.
+     */
+    public void remove(char key) {
+        int slot = slotOf(key);
+        if (slot < 0) {
+            return;
+        }
+        int moved = keyCount - slot - 1;
+        System.arraycopy(keys, slot + 1, keys, slot, moved);
+        System.arraycopy(values, slot + 1, values, slot, moved);
+        System.arraycopy(valueCounts, slot + 1, valueCounts, slot, moved);
+        keyCount--;
+        values[keyCount] = null;
+        if (source != null) {
+            source.removed(slot);
         }
-        list.add(value);
     }
 
     public void set(char key, String value) {
         if (key == 'x') {
             throw new IllegalArgumentException("key 'x' is reserved for the MAC");
         }
-        data.put(key, new ArrayList<String>(Arrays.asList(value)));
+        replace(key, new String[] { value });
     }
 
     public void set(char key, List<String> value) {
         if (key == 'x') {
             throw new IllegalArgumentException("key 'x' is reserved for the MAC");
         }
-        data.put(key, new ArrayList<String>(value));
+        replace(key, value.toArray(new String[value.size()]));
+    }
+
+    /**
+     * Adds a number in the compact form read by {@link #getLong(char)}, rather than as decimal digits.
+     */
+    public void addLong(char key, long value) {
+        add(key, CompactValues.encodeLong(value));
+    }
+
+    public void setLong(char key, long value) {
+        set(key, CompactValues.encodeLong(value));
+    }
+
+    /**
+     * Returns the first value for {@code key} as a number added by {@link #addLong(char, long)} or
+     * {@link #setLong(char, long)}.
+     *
+     * @throws NumberFormatException if the value is not in that form
+     */
+    public OptionalLong getLong(char key) {
+        Optional<String> value = getOne(key);
+        return value.isPresent() ? OptionalLong.of(CompactValues.decodeLong(value.get())) : OptionalLong.empty();
+    }
+
+    /**
+     * Adds a UUID in a compact form of 23 characters, which is read by {@link #getUuid(char)}.
+     */
+    public void addUuid(char key, UUID value) {
+        add(key, CompactValues.encodeUuid(value));
+    }
+
+    public void setUuid(char key, UUID value) {
+        set(key, CompactValues.encodeUuid(value));
+    }
+
+    /**
+     * Returns the first value for {@code key} as a UUID added by {@link #addUuid(char, UUID)} or
+     * {@link #setUuid(char, UUID)}.
+     *
+     * @throws IllegalArgumentException if the value is not in that form
+     */
+    public Optional<UUID> getUuid(char key) {
+        Optional<String> value = getOne(key);
+        return value.isPresent() ? Optional.of(CompactValues.decodeUuid(value.get())) : Optional.<UUID>empty();
+    }
+
+    int keyCount() {
+        return keyCount;
+    }
+
+    char keyAt(int slot) {
+        return keys[slot];
+    }
+
+    int valueCount(int slot) {
+        valuesAt(slot);
+        return valueCounts[slot];
+    }
+
+    String[] valuesAt(int slot) {
+        String[] slotValues = values[slot];
+        if (slotValues == null) {
+            slotValues = decodeValues(keys[slot]);
+            values[slot] = slotValues;
+            valueCounts[slot] = slotValues.length;
+        }
+        return slotValues;
+    }
+
+    /**
+     * Records that this ticket's current contents were decoded from {@code fieldCount} fields of {@code input},
+     * given as start (the key) and end positions in {@code fields}.
+     */
+    void decodedFrom(TicketFactory factory, String input, int[] fields, int fieldCount) {
+        source = new Source(factory, input, fields, fieldCount, keyCount);
+    }
+
+    /**
+     * Records that this ticket expires at {@code expiry} seconds since the epoch, by {@code factory}'s clock.
+     */
+    void expiresAt(TicketFactory factory, long expiry) {
+        this.expiryClock = factory;
+        this.expiry = expiry;
+    }
+
+    /**
+     * Whether this ticket was unmarshalled with an expiry that has since passed.
+     */
+    boolean hasExpired() {
+        return expiryClock != null && expiryClock.hasPassed(expiry);
+    }
+
+    /**
+     * The string this ticket was unmarshalled from, or null if it was built some other way.
+     */
+    Source source() {
+        return source;
+    }
+
+    /**
+     * Adds a key whose values will be supplied by {@link #decodeValues(char)} when first needed.
+     */
+    void addPendingKey(char key) {
+        if (slotOf(key) < 0) {
+            addKey(key, null, 0);
+        }
+    }
+
+    String[] decodeValues(char key) {
+        throw new IllegalStateException("No pending values for key '" + key + "'");
+    }
+
+    private void replace(char key, String[] newValues) {
+        int slot = slotOf(key);
+        if (slot < 0) {
+            addKey(key, newValues, newValues.length);
+        } else {
+            values[slot] = newValues;
+            valueCounts[slot] = newValues.length;
+            changed(slot);
+        }
+    }
+
+    private void changed(int slot) {
+        if (source != null) {
+            source.changed(slot);
+        }
+    }
+
+    private int slotOf(char key) {
+        for (int slot = 0; slot < keyCount; slot++) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int addKey(char key, String[] slotValues, int count) {
+        if (keys == null) {
+            keys = new char[INITIAL_CAPACITY];
+            values = new String[INITIAL_CAPACITY][];
+            valueCounts = new int[INITIAL_CAPACITY];
+        } else if (keyCount == keys.length) {
+            keys = Arrays.copyOf(keys, keyCount * 2);
+            values = Arrays.copyOf(values, keyCount * 2);
+            valueCounts = Arrays.copyOf(valueCounts, keyCount * 2);
+        }
+        int slot = keyCount++;
+        keys[slot] = key;
+        values[slot] = slotValues;
+        valueCounts[slot] = count;
+        changed(slot);
+        return slot;
+    }
+
+    static final class Source {
+        final TicketFactory factory;
+        final String input;
+        final int[] fields;
+        final int fieldCount;
+        private final boolean[] changedSlots;
+        private boolean changed;
+
+        Source(TicketFactory factory, String input, int[] fields, int fieldCount, int keyCount) {
+            this.factory = factory;
+            this.input = input;
+            this.fields = fields;
+            this.fieldCount = fieldCount;
+            this.changedSlots = new boolean[keyCount];
+        }
+
+        boolean isChanged() {
+            return changed;
+        }
+
+        boolean isChanged(int slot) {
+            return slot >= changedSlots.length || changedSlots[slot];
+        }
+
+        void changed(int slot) {
+            changed = true;
+            if (slot < changedSlots.length) {
+                changedSlots[slot] = true;
+            }
+        }
+
+        /**
+         * Records that {@code slot} was removed, so later slots have moved down one.
+         */
+        void removed(int slot) {
+            changed = true;
+            if (slot < changedSlots.length) {
+                System.arraycopy(changedSlots, slot + 1, changedSlots, slot, changedSlots.length - slot - 1);
+                changedSlots[changedSlots.length - 1] = true;
+            }
+        }
+
+        Source copy() {
+            Source copy = new Source(factory, input, fields, fieldCount, changedSlots.length);
+            System.arraycopy(changedSlots, 0, copy.changedSlots, 0, changedSlots.length);
+            copy.changed = changed;
+            return copy;
+        }
+    }
+
+    private final class ValueList extends AbstractList<String> implements RandomAccess {
+        private final char key;
+
+        ValueList(char key) {
+            this.key = key;
+        }
+
+        @Override public String get(int index) {
+            return values()[checkIndex(index, size())];
+        }
+
+        @Override public int size() {
+            int slot = slotOf(key);
+            if (slot < 0) {
+                return 0;
+            }
+            valuesAt(slot);
+            return valueCounts[slot];
+        }
+
+        @Override public String set(int index, String value) {
+            String[] updated = Arrays.copyOf(values(), size());
+            String previous = updated[checkIndex(index, updated.length)];
+            updated[index] = value;
+            Ticket.this.set(key, Arrays.asList(updated));
+            return previous;
+        }
+
+        @Override public void add(int index, String value) {
+            int size = size();
+            if (index == size) {
+                Ticket.this.add(key, value);
+                return;
+            }
+            checkIndex(index, size);
+            String[] updated = new String[size + 1];
+            String[] current = values();
+            System.arraycopy(current, 0, updated, 0, index);
+            updated[index] = value;
+            System.arraycopy(current, index, updated, index + 1, size - index);
+            Ticket.this.set(key, Arrays.asList(updated));
+        }
+
+        @Override public String remove(int index) {
+            int size = size();
+            String[] current = values();
+            String previous = current[checkIndex(index, size)];
+            String[] updated = new String[size - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, size - index - 1);
+            Ticket.this.set(key, Arrays.asList(updated));
+            return previous;
+        }
+
+        private String[] values() {
+            int slot = slotOf(key);
+            return slot < 0 ? new String[0] : valuesAt(slot);
+        }
+
+        private int checkIndex(int index, int size) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return index;
+        }
+    }
+
+    private final class KeySet extends AbstractSet<Character> {
+        @Override public Iterator<Character> iterator() {
+            return new Iterator<Character>() {
+                private int slot;
+
+                @Override public boolean hasNext() {
+                    return slot < keyCount;
+                }
+
+                @Override public Character next() {
+                    if (slot >= keyCount) {
+                        throw new NoSuchElementException();
+                    }
+                    return keys[slot++];
+                }
+            };
+        }
+
+        @Override public boolean contains(Object o) {
+            return o instanceof Character && slotOf((Character) o) >= 0;
+        }
+
+        @Override public boolean remove(Object o) {
+            if (!contains(o)) {
+                return false;
+            }
+            Ticket.this.remove((Character) o);
+            return true;
+        }
+
+        @Override public int size() {
+            return keyCount;
+        }
     }
 }
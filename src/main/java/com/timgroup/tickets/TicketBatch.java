@@ -0,0 +1,213 @@
+package com.timgroup.tickets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Marshals and unmarshals many tickets at once, for batch jobs. Input is split into contiguous chunks, one task per
+ * chunk, so each worker runs through many tickets in a row and takes its MACs from the factory's generator without
+ * contention. Results come back in input order, and a ticket that fails to unmarshal only fails its own result.
+ * Streams are read a chunk at a time, with a few chunks per worker in flight, so they may be of any length.
+ */
+public final class TicketBatch {
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final int STREAM_CHUNK_SIZE = 256;
+
+    private final TicketFactory ticketFactory;
+    private final Executor executor;
+    private final int parallelism;
+
+    /**
+     * Creates a batch processor that runs on the common fork-join pool.
+     */
+    public TicketBatch(TicketFactory ticketFactory) {
+        this(ticketFactory, ForkJoinPool.commonPool(), Math.max(1, ForkJoinPool.getCommonPoolParallelism()));
+    }
+
+    /**
+     * @param parallelism roughly how many tasks {@code executor} can run at once
+     */
+    public TicketBatch(TicketFactory ticketFactory, Executor executor, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.ticketFactory = ticketFactory;
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    public List<Result> unmarshalAll(Collection<String> inputs) {
+        final String[] items = inputs.toArray(new String[inputs.size()]);
+        final Result[] results = new Result[items.length];
+        run(items.length, new Chunk() {
+            @Override public void process(int start, int end) {
+                unmarshal(items, results, start, end);
+            }
+        });
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+
+    /**
+     * Unmarshals the strings in {@code inputs} as the returned stream is consumed, reading ahead only as far as is
+     * needed to keep the workers busy. Closing the returned stream closes {@code inputs}.
+     */
+    public Stream<Result> unmarshalAll(Stream<String> inputs) {
+        final Iterator<String> source = inputs.iterator();
+        Iterator<Result> results = new Iterator<Result>() {
+            private final Deque<CompletableFuture<Result[]>> pending = new ArrayDeque<CompletableFuture<Result[]>>();
+            private Result[] chunk = new Result[0];
+            private int index;
+
+            @Override public boolean hasNext() {
+                while (index == chunk.length) {
+                    while (pending.size() < parallelism * 4 && source.hasNext()) {
+                        pending.add(submit(source));
+                    }
+                    if (pending.isEmpty()) {
+                        return false;
+                    }
+                    chunk = join(pending.poll());
+                    index = 0;
+                }
+                return true;
+            }
+
+            @Override public Result next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return chunk[index++];
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(inputs::close);
+    }
+
+    private CompletableFuture<Result[]> submit(Iterator<String> source) {
+        final String[] items = new String[STREAM_CHUNK_SIZE];
+        int count = 0;
+        while (count < items.length && source.hasNext()) {
+            items[count++] = source.next();
+        }
+        final int size = count;
+        return CompletableFuture.supplyAsync(new Supplier<Result[]>() {
+            @Override public Result[] get() {
+                Result[] results = new Result[size];
+                unmarshal(items, results, 0, size);
+                return results;
+            }
+        }, executor);
+    }
+
+    private void unmarshal(String[] items, Result[] results, int start, int end) {
+        for (int i = start; i < end; i++) {
+            try {
+                results[i] = new Result(ticketFactory.unmarshal(items[i]), null);
+            } catch (InvalidTicketException e) {
+                results[i] = new Result(null, e);
+            }
+        }
+    }
+
+    public List<String> marshalAll(Collection<? extends Ticket> tickets) {
+        final Ticket[] items = tickets.toArray(new Ticket[tickets.size()]);
+        final String[] results = new String[items.length];
+        run(items.length, new Chunk() {
+            @Override public void process(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    results[i] = ticketFactory.marshal(items[i]);
+                }
+            }
+        });
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+
+    private void run(int size, final Chunk chunk) {
+        // a few chunks per worker, so that a slow chunk does not hold up the whole batch
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, (size + parallelism * 4 - 1) / (parallelism * 4));
+        if (size <= chunkSize) {
+            chunk.process(0, size);
+            return;
+        }
+        List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+        for (int start = 0; start < size; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(size, start + chunkSize);
+            tasks.add(CompletableFuture.runAsync(new Runnable() {
+                @Override public void run() {
+                    chunk.process(chunkStart, chunkEnd);
+                }
+            }, executor));
+        }
+        join(CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()])));
+    }
+
+    private static <T> T join(CompletableFuture<T> task) {
+        try {
+            return task.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private interface Chunk {
+        void process(int start, int end);
+    }
+
+    /**
+     * The outcome of unmarshalling one ticket: either the ticket or the reason it was rejected.
+     */
+    public static final class Result {
+        private final Ticket ticket;
+        private final InvalidTicketException failure;
+
+        Result(Ticket ticket, InvalidTicketException failure) {
+            this.ticket = ticket;
+            this.failure = failure;
+        }
+
+        public boolean isValid() {
+            return failure == null;
+        }
+
+        /**
+         * Returns the ticket, or throws the exception that unmarshalling it threw.
+         */
+        public Ticket get() throws InvalidTicketException {
+            if (failure != null) {
+                throw failure;
+            }
+            return ticket;
+        }
+
+        /**
+         * Returns the exception that unmarshalling threw, or null if the ticket was valid.
+         */
+        public InvalidTicketException failure() {
+            return failure;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.timgroup.tickets;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers tickets that have already been verified and decoded, keyed by the exact ticket string, so that repeated
+ * presentations of the same ticket skip the MAC and decoding. Only valid tickets are cached.
+ * <p>
+ * The cache is split into segments by hash, each evicting its least recently used entries once it is full, so that
+ * concurrent lookups rarely contend. Tickets returned are immutable, whether they came from the cache or not. A ticket
+ * whose factory expiry (see {@link TicketFactory#withExpiry}) has passed is dropped and unmarshalled again, which
+ * rejects it, as are all tickets cached before the codec's {@link TicketCodec#keyGeneration()} last changed, so that
+ * those signed with a retired key are rejected too.
+ * <p>
+ * Only misses reach the codec, so a factory's {@link TicketListener} sees only those; hits are counted here.
+ */
+public final class TicketCache {
+    private static final int MAX_SEGMENTS = 16;
+
+    private final TicketCodec codec;
+    private final Segment[] segments;
+    private final long timeToLiveNanos;
+    private final LongSupplier nanoTime;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public TicketCache(TicketCodec codec, int maximumSize) {
+        this(codec, maximumSize, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param timeToLive how long a ticket may be served from the cache after it was verified; zero for no limit
+     */
+    public TicketCache(TicketCodec codec, int maximumSize, long timeToLive, TimeUnit unit) {
+        this(codec, maximumSize, unit.toNanos(timeToLive), System::nanoTime);
+    }
+
+    TicketCache(TicketCodec codec, int maximumSize, long timeToLiveNanos, LongSupplier nanoTime) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        if (timeToLiveNanos < 0) {
+            throw new IllegalArgumentException("timeToLive must not be negative");
+        }
+        this.codec = codec;
+        this.timeToLiveNanos = timeToLiveNanos;
+        this.nanoTime = nanoTime;
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS && segmentCount * 2 <= maximumSize / 8) {
+            segmentCount *= 2;
+        }
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((maximumSize + segmentCount - 1 - i) / segmentCount);
+        }
+    }
+
+    public Ticket unmarshal(String input) throws InvalidTicketException {
+        Segment segment = segmentFor(input);
+        long now = timeToLiveNanos > 0 ? nanoTime.getAsLong() : 0;
+        // read before unmarshalling, so a key retired meanwhile makes the new entry stale rather than trusted
+        long keyGeneration = codec.keyGeneration();
+        CachedTicket entry;
+        synchronized (segment) {
+            entry = segment.get(input);
+            if (entry != null && (entry.keyGeneration != keyGeneration || entry.ticket.hasExpired()
+                    || (timeToLiveNanos > 0 && now - entry.verifiedAt >= timeToLiveNanos))) {
+                segment.remove(input);
+                evictions.increment();
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            hits.increment();
+            return entry.ticket;
+        }
+        misses.increment();
+        Ticket ticket = new ImmutableTicket(codec.unmarshal(input));
+        synchronized (segment) {
+            segment.put(input, new CachedTicket(ticket, now, keyGeneration));
+        }
+        return ticket;
+    }
+
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(String input) {
+        int hash = input.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    private static final class CachedTicket {
+        final Ticket ticket;
+        final long verifiedAt;
+        final long keyGeneration;
+
+        CachedTicket(Ticket ticket, long verifiedAt, long keyGeneration) {
+            this.ticket = ticket;
+            this.verifiedAt = verifiedAt;
+            this.keyGeneration = keyGeneration;
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<String, CachedTicket> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override protected boolean removeEldestEntry(Map.Entry<String, CachedTicket> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.timgroup.tickets;
+
+/**
+ * Converts tickets to and from MAC-protected strings.
+ */
+public interface TicketCodec {
+    String marshal(Ticket ticket);
+
+    Ticket unmarshal(String input) throws InvalidTicketException;
+
+    /**
+     * A number that changes whenever tickets this codec accepted may no longer be accepted, for example because the
+     * key they were signed with was retired. By default it never changes.
+     */
+    default long keyGeneration() {
+        return 0;
+    }
+}
@@ -0,0 +1,9 @@
+package com.timgroup.tickets;
+
+public class TicketExpiredException extends InvalidTicketException {
+    private static final long serialVersionUID = 1L;
+
+    public TicketExpiredException(String message) {
+        super(message);
+    }
+}
@@ -1,48 +1,452 @@
 package com.timgroup.tickets;
 
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-public class TicketFactory {
-    private final TicketMacGenerator macGenerator;
+public class TicketFactory implements TicketCodec {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char COMPRESSED_MARKER = 'z';
+    // how far ahead of this server's clock another server's may be, for tickets it has only just issued
+    private static final long ALLOWED_CLOCK_SKEW_SECONDS = 5;
+    private static final String BASE64_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+    private static final Base64.Encoder BASE64_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder BASE64_DECODER = Base64.getUrlDecoder();
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte) i;
+        }
+    }
+
+    private final ExtendedMacGenerator macGenerator;
     private final char separator;
-    private final char[] escapeOthers;
     private final char unicodeEscape;
     private final char reservedEscape;
+    private final boolean[] reserved;
+    private final TicketListener listener;
+    private final char expiryKey;
+    private final long lifetimeSeconds;
+    private final LongSupplier clock;
+    private final int maxTicketLength;
+    private final int maxFieldCount;
+    private final int maxValueLength;
+    private final int compressionThreshold;
+    private final int maxInflatedLength;
+    private final TicketValueDictionary valueDictionary;
 
     public TicketFactory(TicketMacGenerator macGenerator) {
         this(macGenerator, ',', '=', '+', null);
     }
 
     public TicketFactory(TicketMacGenerator macGenerator, char separator, char unicodeEscape, char reservedEscape, char[] escapeOthers) {
+        this(ExtendedMacGenerator.of(macGenerator), separator, unicodeEscape, reservedEscape,
+                reservedCharacters(separator, unicodeEscape, reservedEscape, escapeOthers), TicketListener.NONE,
+                'x', 0, System::currentTimeMillis, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0, null);
+    }
+
+    private TicketFactory(ExtendedMacGenerator macGenerator, char separator, char unicodeEscape, char reservedEscape, boolean[] reserved,
+                          TicketListener listener, char expiryKey, long lifetimeSeconds, LongSupplier clock,
+                          int maxTicketLength, int maxFieldCount, int maxValueLength,
+                          int compressionThreshold, int maxInflatedLength, TicketValueDictionary valueDictionary) {
         this.macGenerator = macGenerator;
         this.separator = separator;
         this.unicodeEscape = unicodeEscape;
         this.reservedEscape = reservedEscape;
-        this.escapeOthers = escapeOthers == null ? "".toCharArray() : new String(escapeOthers).toCharArray();
+        this.reserved = reserved;
+        this.listener = listener;
+        this.expiryKey = expiryKey;
+        this.lifetimeSeconds = lifetimeSeconds;
+        this.clock = clock;
+        this.maxTicketLength = maxTicketLength;
+        this.maxFieldCount = maxFieldCount;
+        this.maxValueLength = maxValueLength;
+        this.compressionThreshold = compressionThreshold;
+        this.maxInflatedLength = maxInflatedLength;
+        this.valueDictionary = valueDictionary;
+    }
+
+    /**
+     * Returns a factory that works like this one, but reports timings and outcomes to {@code listener}.
+     */
+    public TicketFactory withListener(TicketListener listener) {
+        return new TicketFactory(macGenerator, separator, unicodeEscape, reservedEscape, reserved, listener,
+                expiryKey, lifetimeSeconds, clock, maxTicketLength, maxFieldCount, maxValueLength,
+                compressionThreshold, maxInflatedLength, valueDictionary);
+    }
+
+    /**
+     * Returns a factory that works like this one, but stamps each ticket it marshals with an expiry time
+     * {@code lifetime} from now, and rejects tickets that have expired with {@link TicketExpiredException} before
+     * checking their MAC. The expiry is written as the first field, under {@code key}, as hex seconds since the epoch;
+     * it is covered by the MAC like any other field. Tickets issued more than {@code lifetime} before their expiry
+     * are taken to be from the future and rejected too, allowing for clocks up to a few seconds apart, so servers
+     * sharing tickets need synchronised clocks.
+     * <p>
+     * {@code key} is reserved: tickets cannot contain values for it, and it is left out of unmarshalled tickets.
+     */
+    public TicketFactory withExpiry(char key, Duration lifetime) {
+        return withExpiry(key, lifetime, System::currentTimeMillis);
     }
 
-    public String marshal(Ticket ticket) {
+    TicketFactory withExpiry(char key, Duration lifetime, LongSupplier clock) {
+        if (key == 'x' || key == separator) {
+            throw new IllegalArgumentException("key '" + key + "' cannot be used for the expiry");
+        }
+        if (lifetime.getSeconds() <= 0) {
+            throw new IllegalArgumentException("Ticket lifetime must be at least a second");
+        }
+        return new TicketFactory(macGenerator, separator, unicodeEscape, reservedEscape, reserved, listener,
+                key, lifetime.getSeconds(), clock, maxTicketLength, maxFieldCount, maxValueLength,
+                compressionThreshold, maxInflatedLength, valueDictionary);
+    }
+
+    /**
+     * Returns a factory that works like this one, but rejects input that is longer than {@code maxTicketLength}
+     * characters, or that has more than {@code maxFieldCount} fields or a field value longer than
+     * {@code maxValueLength} characters as escaped. The checks are made before the MAC is calculated, so oversized
+     * input costs no more than a scan. Tickets marshalled by this factory are not checked.
+     */
+    public TicketFactory withLimits(int maxTicketLength, int maxFieldCount, int maxValueLength) {
+        if (maxTicketLength <= 0 || maxFieldCount < 0 || maxValueLength < 0) {
+            throw new IllegalArgumentException("Ticket limits must not be negative, and tickets must have room for a MAC");
+        }
+        return new TicketFactory(macGenerator, separator, unicodeEscape, reservedEscape, reserved, listener,
+                expiryKey, lifetimeSeconds, clock, maxTicketLength, maxFieldCount, maxValueLength,
+                compressionThreshold, maxInflatedLength, valueDictionary);
+    }
+
+    /**
+     * Returns a factory that works like this one, but DEFLATE-compresses values of at least {@code threshold}
+     * characters when that makes them shorter. A compressed value is written as the reserved escape, a 'z' and the
+     * base64url-encoded data, and the MAC covers that form, so nothing is inflated until the MAC has been checked.
+     * Values that would inflate to more than {@code maxInflatedLength} bytes of UTF-8 are rejected, even by
+     * {@link #unmarshalLazily(String)}, and are not compressed when marshalled.
+     * <p>
+     * Compressed values are only understood by factories that have compression enabled.
+     */
+    public TicketFactory withCompression(int threshold, int maxInflatedLength) {
+        if (threshold <= 0 || maxInflatedLength <= 0 || maxInflatedLength == Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Compression threshold and maximum inflated length must be positive");
+        }
+        for (int i = 0; i < BASE64_DIGITS.length(); i++) {
+            if (reserved[BASE64_DIGITS.charAt(i)]) {
+                throw new IllegalArgumentException("Compressed values need '" + BASE64_DIGITS.charAt(i) + "' to be unreserved");
+            }
+        }
+        return new TicketFactory(macGenerator, separator, unicodeEscape, reservedEscape, reserved, listener,
+                expiryKey, lifetimeSeconds, clock, maxTicketLength, maxFieldCount, maxValueLength,
+                threshold, maxInflatedLength, valueDictionary);
+    }
+
+    /**
+     * Returns a factory that works like this one, but takes decoded values from {@code dictionary}, so that values
+     * repeated across many tickets are shared instead of copied for each one. The dictionary may be shared between
+     * factories.
+     */
+    public TicketFactory withValueDictionary(TicketValueDictionary dictionary) {
+        return new TicketFactory(macGenerator, separator, unicodeEscape, reservedEscape, reserved, listener,
+                expiryKey, lifetimeSeconds, clock, maxTicketLength, maxFieldCount, maxValueLength,
+                compressionThreshold, maxInflatedLength, dictionary);
+    }
+
+    private static boolean[] reservedCharacters(char separator, char unicodeEscape, char reservedEscape, char[] escapeOthers) {
+        boolean[] reserved = new boolean[256];
+        for (int ch = 0; ch < reserved.length; ch++) {
+            reserved[ch] = ch <= 32 || ch >= 127 || ch == separator || ch == unicodeEscape || ch == reservedEscape;
+        }
+        if (escapeOthers != null) {
+            for (char ch : escapeOthers) {
+                if (ch < reserved.length) {
+                    reserved[ch] = true;
+                }
+            }
+        }
+        return reserved;
+    }
+
+    @Override public long keyGeneration() {
+        return macGenerator.keyGeneration();
+    }
+
+    @Override public String marshal(Ticket ticket) {
+        if (listener == TicketListener.NONE) {
+            return marshalTicket(ticket);
+        }
+        listener.beforeMarshal();
+        long startTime = System.nanoTime();
+        String result = marshalTicket(ticket);
+        listener.marshalled(result.length(), System.nanoTime() - startTime);
+        return result;
+    }
+
+    /**
+     * Marshals the fields of {@code value} that {@code schema} binds to keys.
+     */
+    public <T> String marshal(TicketSchema<T> schema, T value) {
+        return marshal(schema.toTicket(value));
+    }
+
+    private String marshalTicket(Ticket ticket) {
+        Ticket.Source source = ticket.source();
+        if (source != null && !encodesLike(source.factory)) {
+            source = null;
+        }
+        if (source != null && !source.isChanged() && canReuse(source, ticket)) {
+            return source.input;
+        }
         StringBuilder builder = new StringBuilder();
-        for (Map.Entry<Character, List<String>> e : ticket.data.entrySet()) {
-            for (String value : e.getValue()) {
+        if (lifetimeSeconds > 0) {
+            builder.append(expiryKey).append(newExpiry());
+        }
+        for (int slot = 0; slot < ticket.keyCount(); slot++) {
+            char key = ticket.keyAt(slot);
+            checkKey(key);
+            if (source != null && !source.isChanged(slot) && hasCanonicalFields(source, key)) {
+                appendFields(source, key, builder);
+                continue;
+            }
+            String[] values = ticket.valuesAt(slot);
+            int valueCount = ticket.valueCount(slot);
+            for (int i = 0; i < valueCount; i++) {
                 if (builder.length() > 0) {
                     builder.append(separator);
                 }
-                builder.append(e.getKey().charValue());
-                encodeValue(value, builder);
+                builder.append(key);
+                encodeValue(values[i], builder);
             }
         }
-        String payload = builder.toString();
-        if (!payload.isEmpty()) {
+        String mac = generateMAC(builder);
+        if (builder.length() > 0) {
             builder.append(separator);
         }
-        builder.append('x').append(macGenerator.generateMAC(payload));
+        builder.append('x').append(mac);
         return builder.toString();
     }
 
+    private void appendFields(Ticket.Source source, char key, StringBuilder builder) {
+        for (int i = 0; i < source.fieldCount; i++) {
+            int start = source.fields[i * 2];
+            if (source.input.charAt(start) == key) {
+                if (builder.length() > 0) {
+                    builder.append(separator);
+                }
+                builder.append(source.input, start, source.fields[i * 2 + 1]);
+            }
+        }
+    }
+
+    /**
+     * Whether values encoded by {@code other} are encoded identically by this factory.
+     */
+    private boolean encodesLike(TicketFactory other) {
+        return other == this || (other.separator == separator && other.unicodeEscape == unicodeEscape
+                && other.reservedEscape == reservedEscape && Arrays.equals(other.reserved, reserved)
+                && other.compressionThreshold == compressionThreshold);
+    }
+
+    private boolean hasCanonicalFields(Ticket.Source source, char key) {
+        for (int i = 0; i < source.fieldCount; i++) {
+            int start = source.fields[i * 2];
+            if (source.input.charAt(start) == key && !isCanonical(source.input, start, source.fields[i * 2 + 1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a whole unchanged ticket string is exactly what this factory would marshal. Tickets with an expiry
+     * never are, as marshalling gives them a new one, and nor are those whose MAC the generator would no longer make,
+     * nor those with fields out of order, empty parts or escapes that this factory would have written differently.
+     */
+    private boolean canReuse(Ticket.Source source, Ticket ticket) {
+        if (source.factory.macGenerator != macGenerator || source.factory.lifetimeSeconds != 0 || lifetimeSeconds != 0) {
+            return false;
+        }
+        String input = source.input;
+        int macStart = input.lastIndexOf(separator) + 1;
+        int expectedStart = 0;
+        int slot = 0;
+        for (int i = 0; i < source.fieldCount; i++) {
+            int start = source.fields[i * 2];
+            int end = source.fields[i * 2 + 1];
+            char key = input.charAt(start);
+            // a key's values are marshalled together, in the order its first value was read
+            if (key != ticket.keyAt(slot) && (++slot == ticket.keyCount() || key != ticket.keyAt(slot))) {
+                return false;
+            }
+            if (start != expectedStart || !isCanonical(input, start, end)) {
+                return false;
+            }
+            expectedStart = end + 1;
+        }
+        return expectedStart == macStart && input.length() > macStart
+                && macGenerator.isCurrentMAC(input, macStart + 1, input.length());
+    }
+
+    /**
+     * Whether the field from {@code start} (its key) to {@code end} is exactly as this factory would encode its
+     * value: escaped in lowercase hex, and only where needed. Compressed values, and any long enough that they might
+     * have been, never count, as only compressing them again would tell.
+     */
+    private boolean isCanonical(CharSequence input, int start, int end) {
+        int length = 0;
+        for (int i = start + 1; i < end; i++, length++) {
+            char c = input.charAt(i);
+            if (c == unicodeEscape) {
+                if (i + 5 > end || lowercaseHex(input, i + 1, i + 5) < 256) {
+                    return false;
+                }
+                i += 4;
+            } else if (c == reservedEscape) {
+                int escaped = i + 3 > end ? -1 : lowercaseHex(input, i + 1, i + 3);
+                if (escaped < 0 || !reserved[escaped]) {
+                    return false;
+                }
+                i += 2;
+            } else if (c >= reserved.length || reserved[c]) {
+                return false;
+            }
+        }
+        return compressionThreshold <= 0 || length < compressionThreshold;
+    }
+
+    /**
+     * Returns a writer that streams a ticket in this factory's format to {@code output}.
+     */
+    public TicketWriter newWriter(Appendable output) {
+        return startWriting(TicketWriter.to(output));
+    }
+
+    /**
+     * Returns a writer that streams a ticket in this factory's format to {@code output}, as ASCII bytes.
+     */
+    public TicketWriter newWriter(ByteBuffer output) {
+        return startWriting(TicketWriter.to(output));
+    }
+
+    /**
+     * Returns a writer that streams a ticket in this factory's format to {@code output}, as ASCII bytes. The stream is
+     * neither flushed nor closed.
+     */
+    public TicketWriter newWriter(OutputStream output) {
+        return startWriting(TicketWriter.to(output));
+    }
+
+    private TicketWriter startWriting(TicketWriter.Target target) {
+        if (listener != TicketListener.NONE) {
+            listener.beforeMarshal();
+            listener.beforeMAC();
+        }
+        TicketWriter writer = new TicketWriter(this, separator, macGenerator.startMAC(), target, listener);
+        if (lifetimeSeconds > 0) {
+            writer.addEncoded(expiryKey, newExpiry());
+        }
+        return writer;
+    }
+
+    private String newExpiry() {
+        return Long.toHexString(currentSeconds() + lifetimeSeconds);
+    }
+
+    private long currentSeconds() {
+        return Math.floorDiv(clock.getAsLong(), 1000);
+    }
+
+    /**
+     * Whether {@code expiry}, in seconds since the epoch, has passed by this factory's clock.
+     */
+    boolean hasPassed(long expiry) {
+        return currentSeconds() >= expiry;
+    }
+
+    /**
+     * Throws {@link IllegalArgumentException} if values cannot be added for {@code key} because this factory uses it.
+     */
+    void checkKey(char key) {
+        if (key == 'x') {
+            throw new IllegalArgumentException("key 'x' is reserved for the MAC");
+        }
+        if (lifetimeSeconds > 0 && key == expiryKey) {
+            throw new IllegalArgumentException("key '" + key + "' is reserved for the expiry");
+        }
+    }
+
+    /**
+     * Whether {@code c} can appear in a ticket marshalled by this factory.
+     */
+    boolean isTicketCharacter(int c) {
+        return c < reserved.length && (!reserved[c] || c == separator || c == unicodeEscape || c == reservedEscape);
+    }
+
+    /**
+     * Whether {@code c} is one of this factory's escape characters.
+     */
+    boolean isEscape(int c) {
+        return c == unicodeEscape || c == reservedEscape;
+    }
+
+    /**
+     * Whether the ASCII bytes of {@code input} from {@code pos} up to {@code end} start with an escape sequence that
+     * this factory could have written.
+     */
+    boolean startsEscape(byte[] input, int pos, int end) {
+        int digits;
+        if (input[pos] == unicodeEscape) {
+            digits = 4;
+        } else if (input[pos] == reservedEscape) {
+            if (compressionThreshold > 0 && pos + 1 < end && input[pos + 1] == COMPRESSED_MARKER) {
+                return true;
+            }
+            digits = 2;
+        } else {
+            return false;
+        }
+        if (pos + digits >= end) {
+            return false;
+        }
+        for (int i = pos + 1; i <= pos + digits; i++) {
+            if (input[i] < 0 || HEX_VALUES[input[i]] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether {@code length} ASCII bytes of {@code input} from {@code offset} end with a separator and a MAC field
+     * that the generator could have produced, so are worth unmarshalling.
+     */
+    boolean endsWithMAC(byte[] input, int offset, int length) {
+        int end = offset + length;
+        int macStart = end;
+        while (macStart > offset && input[macStart - 1] != separator) {
+            macStart--;
+        }
+        if (macStart == offset || macStart == end || input[macStart] != 'x') {
+            return false;
+        }
+        return macGenerator.isWellFormedMAC(new AsciiBytes(input, macStart + 1, end - macStart - 1), 0, end - macStart - 1);
+    }
+
+    private boolean isReservedKey(char key) {
+        return key == 'x' || (lifetimeSeconds > 0 && key == expiryKey);
+    }
+
     public static List<String> split(CharSequence input, char separator) {
         if (input.length() == 0) {
             return Collections.emptyList();
@@ -71,83 +475,566 @@ public class TicketFactory {
         return result;
     }
 
-    public Ticket unmarshal(String input) throws InvalidTicketException {
-        List<String> parts = split(input, separator);
-        if (parts.isEmpty()) {
-            throw new InvalidTicketException("Ticket string does not end with MAC (looks empty)");
+    @Override public Ticket unmarshal(String input) throws InvalidTicketException {
+        if (listener == TicketListener.NONE) {
+            return unmarshalTicket(input);
         }
-        String macPart = parts.get(parts.size() - 1);
-        if (!macPart.startsWith("x")) {
-            throw new InvalidTicketException("Ticket string does not end with MAC");
+        listener.beforeUnmarshal();
+        long startTime = System.nanoTime();
+        try {
+            Ticket ticket = unmarshalTicket(input);
+            listener.unmarshalled(input.length(), System.nanoTime() - startTime);
+            return ticket;
+        } catch (InvalidTicketException e) {
+            listener.rejected(input.length(), System.nanoTime() - startTime, e);
+            throw e;
         }
-        String theirMac = macPart.substring(1);
-        String ourMac;
-        if (parts.size() == 1) {
-            ourMac = macGenerator.generateMAC("");
-        } else {
-            String payload = input.substring(0, input.length() - macPart.length() - 1);
-            ourMac = macGenerator.generateMAC(payload);
+    }
+
+    /**
+     * Unmarshals a ticket into a new object, through the fields that {@code schema} binds to keys.
+     */
+    public <T> T unmarshal(TicketSchema<T> schema, String input) throws InvalidTicketException {
+        return schema.fromTicket(unmarshal(input));
+    }
+
+    /**
+     * Unmarshals a ticket from {@code length} bytes of {@code input} starting at {@code offset}. Marshalled tickets
+     * are ASCII, so the MAC is checked against the bytes as they are and values are decoded straight from them.
+     */
+    public Ticket unmarshal(byte[] input, int offset, int length) throws InvalidTicketException {
+        if (offset < 0 || length < 0 || length > input.length - offset) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array length " + input.length);
+        }
+        // oversized input goes straight through to be rejected, unscanned
+        int asciiCheckEnd = length > maxTicketLength ? offset : offset + length;
+        for (int i = offset; i < asciiCheckEnd; i++) {
+            if (input[i] < 0) {
+                return unmarshal(new String(input, offset, length, StandardCharsets.UTF_8));
+            }
+        }
+        return unmarshalAscii(new AsciiBytes(input, offset, length));
+    }
+
+    /**
+     * Unmarshals a ticket from the bytes remaining in {@code input}, consuming them. Buffers without an accessible
+     * array, such as direct buffers, are read in place as well, and only copied if they hold non-ASCII bytes.
+     */
+    public Ticket unmarshal(ByteBuffer input) throws InvalidTicketException {
+        int position = input.position();
+        int limit = input.limit();
+        input.position(limit);
+        if (input.hasArray()) {
+            return unmarshal(input.array(), input.arrayOffset() + position, limit - position);
+        }
+        int asciiCheckEnd = limit - position > maxTicketLength ? position : limit;
+        for (int i = position; i < asciiCheckEnd; i++) {
+            if (input.get(i) < 0) {
+                byte[] bytes = new byte[limit - position];
+                for (int j = 0; j < bytes.length; j++) {
+                    bytes[j] = input.get(position + j);
+                }
+                return unmarshal(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+        return unmarshalAscii(new AsciiBuffer(input, position, limit - position));
+    }
+
+    private Ticket unmarshalAscii(CharSequence ascii) throws InvalidTicketException {
+        if (listener == TicketListener.NONE) {
+            return unmarshalTicket(ascii);
         }
-        if (!ourMac.equals(theirMac)) {
-            throw new TicketMacMismatchException(ourMac, theirMac);
+        listener.beforeUnmarshal();
+        long startTime = System.nanoTime();
+        try {
+            Ticket ticket = unmarshalTicket(ascii);
+            listener.unmarshalled(ascii.length(), System.nanoTime() - startTime);
+            return ticket;
+        } catch (InvalidTicketException e) {
+            listener.rejected(ascii.length(), System.nanoTime() - startTime, e);
+            throw e;
         }
+    }
+
+    private Ticket unmarshalTicket(CharSequence input) throws InvalidTicketException {
+        int macStart = verify(input);
         Ticket ticket = new Ticket();
-        for (String part : parts) {
-            if (part.isEmpty()) {
-                continue;
+        StringBuilder buffer = new StringBuilder();
+        // only strings are kept for re-marshalling; byte input may be reused by the caller
+        int[] fields = input instanceof String ? new int[16] : null;
+        int fieldCount = 0;
+        int partStart = 0;
+        for (int pos = 0; pos < macStart; pos++) {
+            if (input.charAt(pos) == separator) {
+                if (pos > partStart && !isReservedKey(input.charAt(partStart))) {
+                    ticket.add(input.charAt(partStart), decodeValue(input, partStart + 1, pos, buffer));
+                    if (fields != null) {
+                        if (fieldCount * 2 == fields.length) {
+                            fields = Arrays.copyOf(fields, fields.length * 2);
+                        }
+                        fields[fieldCount * 2] = partStart;
+                        fields[fieldCount * 2 + 1] = pos;
+                        fieldCount++;
+                    }
+                }
+                partStart = pos + 1;
             }
-            char key = part.charAt(0);
-            if (key == 'x') {
-                continue;
+        }
+        if (fields != null) {
+            ticket.decodedFrom(this, (String) input, fields, fieldCount);
+        }
+        if (lifetimeSeconds > 0) {
+            ticket.expiresAt(this, parseExpiry(input, macStart));
+        }
+        return ticket;
+    }
+
+    /**
+     * Unmarshals a ticket, checking its MAC and the shape of its values, but only decoding the values for a key when
+     * they are first read. The returned ticket is no more thread-safe than one from {@link #unmarshal(String)}, but
+     * note that here even reads may modify it.
+     */
+    public Ticket unmarshalLazily(String input) throws InvalidTicketException {
+        if (listener == TicketListener.NONE) {
+            return unmarshalTicketLazily(input);
+        }
+        listener.beforeUnmarshal();
+        long startTime = System.nanoTime();
+        try {
+            Ticket ticket = unmarshalTicketLazily(input);
+            listener.unmarshalled(input.length(), System.nanoTime() - startTime);
+            return ticket;
+        } catch (InvalidTicketException e) {
+            listener.rejected(input.length(), System.nanoTime() - startTime, e);
+            throw e;
+        }
+    }
+
+    private Ticket unmarshalTicketLazily(String input) throws InvalidTicketException {
+        int macStart = verify(input);
+        int[] fields = new int[16];
+        int fieldCount = 0;
+        int partStart = 0;
+        for (int pos = 0; pos < macStart; pos++) {
+            if (input.charAt(pos) == separator) {
+                if (pos > partStart && !isReservedKey(input.charAt(partStart))) {
+                    checkValue(input, partStart + 1, pos);
+                    if (fieldCount * 2 == fields.length) {
+                        fields = Arrays.copyOf(fields, fields.length * 2);
+                    }
+                    fields[fieldCount * 2] = partStart;
+                    fields[fieldCount * 2 + 1] = pos;
+                    fieldCount++;
+                }
+                partStart = pos + 1;
             }
-            String value = decodeValue(part.substring(1));
-            ticket.add(key, value);
+        }
+        LazyTicket ticket = new LazyTicket(this, input, fields, fieldCount);
+        if (lifetimeSeconds > 0) {
+            ticket.expiresAt(this, parseExpiry(input, macStart));
         }
         return ticket;
     }
 
-    private void encodeValue(CharSequence value, StringBuilder output) {
+    private int verify(CharSequence input) throws InvalidTicketException {
+        checkLength(input.length());
+        int macEnd = input.length();
+        while (macEnd > 0 && input.charAt(macEnd - 1) == separator) {
+            macEnd--;
+        }
+        if (macEnd == 0) {
+            throw new InvalidTicketException("Ticket string does not end with MAC (looks empty)");
+        }
+        int macStart = macEnd - 1;
+        while (macStart > 0 && input.charAt(macStart - 1) != separator) {
+            macStart--;
+        }
+        if (input.charAt(macStart) != 'x') {
+            throw new InvalidTicketException("Ticket string does not end with MAC");
+        }
+        if (!macGenerator.isWellFormedMAC(input, macStart + 1, macEnd)) {
+            throw new InvalidTicketException("Ticket MAC is malformed");
+        }
+        if (lifetimeSeconds > 0) {
+            checkExpiry(input, macStart);
+        }
+        if (maxFieldCount < Integer.MAX_VALUE || maxValueLength < Integer.MAX_VALUE) {
+            checkFields(input, macStart);
+        }
+        int payloadEnd = isEmptyPayload(input, macStart) ? 0 : input.length() - (macEnd - macStart) - 1;
+        if (!verifyMAC(input, payloadEnd, macStart + 1, macEnd)) {
+            throw new TicketMacMismatchException(input.subSequence(macStart + 1, macEnd).toString());
+        }
+        return macStart;
+    }
+
+    private void checkLength(int length) throws InvalidTicketException {
+        if (length > maxTicketLength) {
+            throw new InvalidTicketException("Ticket string is longer than " + maxTicketLength + " characters");
+        }
+    }
+
+    private void checkFields(CharSequence input, int macStart) throws InvalidTicketException {
+        int fieldCount = 0;
+        int partStart = 0;
+        for (int pos = 0; pos < macStart; pos++) {
+            if (input.charAt(pos) == separator) {
+                if (pos > partStart) {
+                    if (++fieldCount > maxFieldCount) {
+                        throw new InvalidTicketException("Ticket has more than " + maxFieldCount + " fields");
+                    }
+                    if (pos - partStart - 1 > maxValueLength) {
+                        throw new InvalidTicketException("Ticket has a value longer than " + maxValueLength + " characters");
+                    }
+                }
+                partStart = pos + 1;
+            }
+        }
+    }
+
+    private void checkExpiry(CharSequence input, int macStart) throws InvalidTicketException {
+        long expiry = parseExpiry(input, macStart);
+        long now = currentSeconds();
+        if (now >= expiry) {
+            throw new TicketExpiredException("Ticket expired at " + Instant.ofEpochSecond(expiry));
+        }
+        if (expiry - lifetimeSeconds > now + ALLOWED_CLOCK_SKEW_SECONDS) {
+            throw new TicketExpiredException("Ticket is not valid until " + Instant.ofEpochSecond(expiry - lifetimeSeconds));
+        }
+    }
+
+    private long parseExpiry(CharSequence input, int macStart) throws InvalidTicketException {
+        int pos = 0;
+        while (pos < macStart && input.charAt(pos) == separator) {
+            pos++;
+        }
+        if (pos == macStart || input.charAt(pos) != expiryKey) {
+            throw new InvalidTicketException("Ticket string does not start with expiry");
+        }
+        long expiry = 0;
+        int digits = 0;
+        for (pos++; pos < macStart && input.charAt(pos) != separator; pos++, digits++) {
+            char c = input.charAt(pos);
+            // lowercase only, as the factory writes it
+            int value = c < HEX_VALUES.length && !Character.isUpperCase(c) ? HEX_VALUES[c] : -1;
+            if (value < 0 || digits == 15) {
+                throw new InvalidTicketException("Ticket expiry is not a hex number of seconds");
+            }
+            expiry = (expiry << 4) | value;
+        }
+        if (digits == 0) {
+            throw new InvalidTicketException("Ticket expiry is not a hex number of seconds");
+        }
+        return expiry;
+    }
+
+    private String generateMAC(CharSequence payload) {
+        if (listener == TicketListener.NONE) {
+            return macGenerator.generateMAC(payload, 0, payload.length());
+        }
+        listener.beforeMAC();
+        long startTime = System.nanoTime();
+        String mac = macGenerator.generateMAC(payload, 0, payload.length());
+        listener.macComputed(payload.length(), System.nanoTime() - startTime);
+        return mac;
+    }
+
+    private boolean verifyMAC(CharSequence input, int payloadEnd, int macStart, int macEnd) {
+        if (listener == TicketListener.NONE) {
+            return verifyPayloadMAC(input, payloadEnd, macStart, macEnd);
+        }
+        listener.beforeMAC();
+        long startTime = System.nanoTime();
+        boolean verified = verifyPayloadMAC(input, payloadEnd, macStart, macEnd);
+        listener.macComputed(payloadEnd, System.nanoTime() - startTime);
+        return verified;
+    }
+
+    private boolean verifyPayloadMAC(CharSequence input, int payloadEnd, int macStart, int macEnd) {
+        if (input instanceof AsciiBytes) {
+            AsciiBytes ascii = (AsciiBytes) input;
+            return macGenerator.verifyMAC(ascii.bytes, ascii.offset, payloadEnd, input, macStart, macEnd);
+        }
+        return macGenerator.verifyMAC(input, 0, payloadEnd, input, macStart, macEnd);
+    }
+
+    private boolean isEmptyPayload(CharSequence input, int macStart) {
+        for (int pos = 0; pos < macStart; pos++) {
+            if (input.charAt(pos) != separator) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void encodeValue(CharSequence value, StringBuilder output) {
+        int start = output.length();
+        escapeValue(value, output);
+        if (compressionThreshold > 0 && value.length() >= compressionThreshold) {
+            byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+            // a value too large to inflate again is left as it is, rather than made into a ticket we would reject
+            if (bytes.length > maxInflatedLength) {
+                return;
+            }
+            String compressed = compress(bytes);
+            if (compressed.length() + 2 < output.length() - start) {
+                output.setLength(start);
+                output.append(reservedEscape).append(COMPRESSED_MARKER).append(compressed);
+            }
+        }
+    }
+
+    private void escapeValue(CharSequence value, StringBuilder output) {
         output.ensureCapacity(output.length() + value.length());
+        int unescaped = 0;
         for (int i = 0; i < value.length(); i++) {
-            int c = value.charAt(i);
+            char c = value.charAt(i);
             if (c >= 256) {
-                output.append(String.format("%c%04x", unicodeEscape, c));
-            } else if (isReserved(c)) {
-                output.append(String.format("%c%02x", reservedEscape, c));
-            } else {
-                output.append((char) c);
+                output.append(value, unescaped, i)
+                        .append(unicodeEscape)
+                        .append(HEX_DIGITS[c >> 12])
+                        .append(HEX_DIGITS[(c >> 8) & 0xf])
+                        .append(HEX_DIGITS[(c >> 4) & 0xf])
+                        .append(HEX_DIGITS[c & 0xf]);
+                unescaped = i + 1;
+            } else if (reserved[c]) {
+                output.append(value, unescaped, i)
+                        .append(reservedEscape)
+                        .append(HEX_DIGITS[c >> 4])
+                        .append(HEX_DIGITS[c & 0xf]);
+                unescaped = i + 1;
             }
         }
+        output.append(value, unescaped, value.length());
     }
 
-    private String decodeValue(CharSequence input) {
-        StringBuilder builder = new StringBuilder(input.length());
-        for (int i = 0; i < input.length(); i++) {
-            int c = input.charAt(i);
-            if (c == '=') {
-                int decoded = Integer.parseInt(input.subSequence(i + 1, i + 5).toString(), 16);
-                builder.append((char) decoded);
-                i += 4;
-            } else if (c == '+') {
-                int decoded = Integer.parseInt(input.subSequence(i + 1, i + 3).toString(), 16);
-                builder.append((char) decoded);
-                i += 2;
+    /**
+     * Decodes the value between {@code start} and {@code end}. Values without escapes, such as most ids and role
+     * names, are returned as a plain substring; {@code builder} is only used to put escaped ones back together.
+     */
+    String decodeValue(CharSequence input, int start, int end, StringBuilder builder) throws InvalidTicketException {
+        if (isCompressed(input, start, end)) {
+            return inflate(input, start + 2, end);
+        }
+        int escape = nextEscape(input, start, end);
+        if (escape == end) {
+            return valueDictionary != null ? valueDictionary.intern(input, start, end) : input.subSequence(start, end).toString();
+        }
+        builder.setLength(0);
+        int unescaped = start;
+        for (int i = escape; i < end; i = nextEscape(input, i, end)) {
+            builder.append(input, unescaped, i);
+            if (input.charAt(i) == unicodeEscape) {
+                checkEscapeLength(i + 5, end);
+                builder.append((char) decodeHex(input, i + 1, i + 5));
+                i += 5;
             } else {
-                builder.append((char) c);
+                checkEscapeLength(i + 3, end);
+                builder.append((char) decodeHex(input, i + 1, i + 3));
+                i += 3;
             }
+            unescaped = i;
         }
-        return builder.toString();
+        builder.append(input, unescaped, end);
+        return valueDictionary != null ? valueDictionary.intern(builder, 0, builder.length()) : builder.toString();
     }
 
-    private boolean isReserved(int ch) {
-        if (ch <= 32 || ch >= 127 || ch == separator || ch == unicodeEscape || ch == reservedEscape) {
-            return true;
+    private void checkValue(CharSequence input, int start, int end) throws InvalidTicketException {
+        if (isCompressed(input, start, end)) {
+            // only inflating shows whether the data is complete and within the limit
+            inflate(input, start + 2, end);
+            return;
         }
-        for (char c : escapeOthers) {
-            if (ch == c) {
-                return true;
+        for (int i = nextEscape(input, start, end); i < end; i = nextEscape(input, i, end)) {
+            int escapeEnd = i + (input.charAt(i) == unicodeEscape ? 5 : 3);
+            checkEscapeLength(escapeEnd, end);
+            decodeHex(input, i + 1, escapeEnd);
+            i = escapeEnd;
+        }
+    }
+
+    private boolean isCompressed(CharSequence input, int start, int end) {
+        return compressionThreshold > 0 && end - start >= 2
+                && input.charAt(start) == reservedEscape && input.charAt(start + 1) == COMPRESSED_MARKER;
+    }
+
+    private static String compress(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] output = new byte[bytes.length / 2 + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return BASE64_ENCODER.encodeToString(Arrays.copyOf(output, length));
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private String inflate(CharSequence input, int start, int end) throws InvalidTicketException {
+        byte[] compressed;
+        try {
+            compressed = BASE64_DECODER.decode(input.subSequence(start, end).toString());
+        } catch (IllegalArgumentException e) {
+            throw new InvalidTicketException("Ticket value is not valid compressed data");
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            // one byte over the limit is enough to tell that the value is too large
+            int capacity = maxInflatedLength + 1;
+            byte[] output = new byte[Math.min(capacity, compressed.length * 4 + 64)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == output.length) {
+                    if (length == capacity) {
+                        break;
+                    }
+                    output = Arrays.copyOf(output, (int) Math.min(capacity, length * 2L));
+                }
+                int inflated = inflater.inflate(output, length, output.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new InvalidTicketException("Ticket value has truncated compressed data");
+                }
+                length += inflated;
+            }
+            if (length > maxInflatedLength) {
+                throw new InvalidTicketException("Ticket value inflates to more than " + maxInflatedLength + " bytes");
+            }
+            return new String(output, 0, length, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new InvalidTicketException("Ticket value is not valid compressed data");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private int nextEscape(CharSequence input, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (c == unicodeEscape || c == reservedEscape) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static void checkEscapeLength(int escapeEnd, int valueEnd) throws InvalidTicketException {
+        if (escapeEnd > valueEnd) {
+            throw new InvalidTicketException("Ticket value ends with truncated escape");
+        }
+    }
+
+    /**
+     * Decodes the lowercase hex digits from {@code start} to {@code end}, or returns -1 if there is anything else.
+     */
+    private static int lowercaseHex(CharSequence input, int start, int end) {
+        int decoded = 0;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            int value = c < HEX_VALUES.length && !Character.isUpperCase(c) ? HEX_VALUES[c] : -1;
+            if (value < 0) {
+                return -1;
+            }
+            decoded = (decoded << 4) | value;
+        }
+        return decoded;
+    }
+
+    private static int decodeHex(CharSequence input, int start, int end) throws InvalidTicketException {
+        int decoded = 0;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            int value = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+            if (value < 0) {
+                throw new InvalidTicketException("Ticket value contains invalid escape");
+            }
+            decoded = (decoded << 4) | value;
+        }
+        return decoded;
+    }
+
+    /**
+     * A view of ASCII bytes as characters, so that they can be parsed without first being copied into a String.
+     */
+    private static final class AsciiBytes implements CharSequence {
+        final byte[] bytes;
+        final int offset;
+        private final int length;
+
+        AsciiBytes(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override public int length() {
+            return length;
+        }
+
+        @Override public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length);
+            }
+            return (char) bytes[offset + index];
+        }
+
+        @Override public CharSequence subSequence(int start, int end) {
+            if (start < 0 || start > end || end > length) {
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+            }
+            return new String(bytes, offset + start, end - start, StandardCharsets.US_ASCII);
+        }
+
+        @Override public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * A view of ASCII bytes in a buffer as characters, read with absolute gets so the buffer's position is not used.
+     */
+    private static final class AsciiBuffer implements CharSequence {
+        private final ByteBuffer bytes;
+        private final int offset;
+        private final int length;
+
+        AsciiBuffer(ByteBuffer bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override public int length() {
+            return length;
+        }
+
+        @Override public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + length);
+            }
+            return (char) bytes.get(offset + index);
+        }
+
+        @Override public CharSequence subSequence(int start, int end) {
+            if (start < 0 || start > end || end > length) {
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+            }
+            char[] chars = new char[end - start];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) bytes.get(offset + start + i);
             }
+            return new String(chars);
+        }
+
+        @Override public String toString() {
+            return subSequence(0, length).toString();
         }
-        return false;
     }
 }
@@ -0,0 +1,103 @@
+package com.timgroup.tickets;
+
+/**
+ * Receives timings and outcomes from a {@link TicketFactory}; see {@link TicketFactory#withListener(TicketListener)}.
+ * Methods are called on the thread doing the work, so implementations must be thread-safe and quick. Lengths are in
+ * characters of the marshalled ticket or payload.
+ * <p>
+ * Tickets written with a {@link TicketWriter} are reported when it is finished. Their MAC is calculated piece by piece
+ * as fields are written, so {@link #macComputed(int, long)} gets the total time spent on it, whereas
+ * {@link #beforeMAC()} is called when the writer is created. Tickets served by a {@link TicketCache} without being
+ * unmarshalled again are not reported at all; the cache counts them itself.
+ */
+public interface TicketListener {
+    /**
+     * Does nothing. A factory with this listener does not read the clock at all.
+     */
+    TicketListener NONE = new TicketListener() {
+    };
+
+    /**
+     * Called on the same thread just before the work that {@link #marshalled(int, long)} will report, so that
+     * listeners can time it themselves.
+     */
+    default void beforeMarshal() {
+    }
+
+    /**
+     * Called on the same thread just before the work that {@link #unmarshalled(int, long)} or
+     * {@link #rejected(int, long, InvalidTicketException)} will report.
+     */
+    default void beforeUnmarshal() {
+    }
+
+    /**
+     * Called on the same thread just before the work that {@link #macComputed(int, long)} will report. MACs are
+     * computed while marshalling and unmarshalling, so this comes between those calls and their outcomes.
+     */
+    default void beforeMAC() {
+    }
+
+    default void marshalled(int ticketLength, long elapsedNanos) {
+    }
+
+    default void unmarshalled(int ticketLength, long elapsedNanos) {
+    }
+
+    /**
+     * Called when unmarshalling fails; {@code reason} is a {@link TicketMacMismatchException} if the ticket was well
+     * formed but its MAC was wrong.
+     */
+    default void rejected(int ticketLength, long elapsedNanos, InvalidTicketException reason) {
+    }
+
+    default void macComputed(int payloadLength, long elapsedNanos) {
+    }
+
+    static TicketListener all(final TicketListener... listeners) {
+        final TicketListener[] copy = listeners.clone();
+        return new TicketListener() {
+            @Override public void beforeMarshal() {
+                for (TicketListener listener : copy) {
+                    listener.beforeMarshal();
+                }
+            }
+
+            @Override public void beforeUnmarshal() {
+                for (TicketListener listener : copy) {
+                    listener.beforeUnmarshal();
+                }
+            }
+
+            @Override public void beforeMAC() {
+                for (TicketListener listener : copy) {
+                    listener.beforeMAC();
+                }
+            }
+
+            @Override public void marshalled(int ticketLength, long elapsedNanos) {
+                for (TicketListener listener : copy) {
+                    listener.marshalled(ticketLength, elapsedNanos);
+                }
+            }
+
+            @Override public void unmarshalled(int ticketLength, long elapsedNanos) {
+                for (TicketListener listener : copy) {
+                    listener.unmarshalled(ticketLength, elapsedNanos);
+                }
+            }
+
+            @Override public void rejected(int ticketLength, long elapsedNanos, InvalidTicketException reason) {
+                for (TicketListener listener : copy) {
+                    listener.rejected(ticketLength, elapsedNanos, reason);
+                }
+            }
+
+            @Override public void macComputed(int payloadLength, long elapsedNanos) {
+                for (TicketListener listener : copy) {
+                    listener.macComputed(payloadLength, elapsedNanos);
+                }
+            }
+        };
+    }
+}
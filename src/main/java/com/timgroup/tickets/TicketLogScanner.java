@@ -0,0 +1,281 @@
+package com.timgroup.tickets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Finds tickets in log files and unmarshals them, for investigating incidents offline. The file is memory-mapped in
+ * segments which are scanned in parallel, so reading it is usually what limits the speed.
+ * <p>
+ * A token is a run of characters that can appear in the factory's tickets, ended by any other character or by one
+ * of {@code " ' ; = &}, which surround tickets in cookies and query strings. The factory's own escape characters do
+ * not end a token, as they appear within tickets; a ticket is looked for after each one that does not start an
+ * escape, and if that fails, after each one that does. Tokens that end with a separator and a well-formed MAC field
+ * are unmarshalled and passed to a {@link Sink}; everything else is skipped, as are tokens longer than
+ * {@value #MAX_TOKEN_LENGTH} characters. Values containing the other delimiters are only found whole if the factory
+ * escapes them.
+ */
+public final class TicketLogScanner {
+    static final int MAX_TOKEN_LENGTH = 8192;
+    private static final int MIN_SEGMENT_SIZE = 1 << 20;
+    private static final String DELIMITERS = "\"';=&";
+
+    private final TicketFactory ticketFactory;
+    private final Executor executor;
+    private final int parallelism;
+    private final boolean[] tokenBytes = new boolean[256];
+
+    /**
+     * Creates a scanner that runs on the common fork-join pool.
+     */
+    public TicketLogScanner(TicketFactory ticketFactory) {
+        this(ticketFactory, ForkJoinPool.commonPool(), Math.max(1, ForkJoinPool.getCommonPoolParallelism()));
+    }
+
+    /**
+     * @param parallelism roughly how many tasks {@code executor} can run at once
+     */
+    public TicketLogScanner(TicketFactory ticketFactory, Executor executor, int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        this.ticketFactory = ticketFactory;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        for (int b = 0; b < 128; b++) {
+            tokenBytes[b] = ticketFactory.isTicketCharacter(b) && (DELIMITERS.indexOf(b) < 0 || ticketFactory.isEscape(b));
+        }
+    }
+
+    /**
+     * Receives the tickets found by a scan. Methods are called from several threads at once, in no particular order,
+     * so implementations must be thread-safe. Positions are byte offsets into the file.
+     */
+    public interface Sink {
+        Sink NONE = new Sink() {
+        };
+
+        default void valid(long position, Ticket ticket) {
+        }
+
+        /**
+         * Called for a token that looks like a ticket but fails to unmarshal; {@code reason} is a
+         * {@link TicketMacMismatchException} if only its MAC was wrong.
+         */
+        default void rejected(long position, String token, InvalidTicketException reason) {
+        }
+    }
+
+    /**
+     * Scans {@code file}, passing each ticket found to {@code sink}, and returns the totals.
+     */
+    public Summary scan(Path file, final Sink sink) throws IOException {
+        List<Segment> segments = new ArrayList<Segment>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long segmentSize = Math.max(MIN_SEGMENT_SIZE, (size + parallelism * 4 - 1) / (parallelism * 4));
+            segmentSize = Math.min(segmentSize, Integer.MAX_VALUE - MAX_TOKEN_LENGTH - 2);
+            for (long start = 0; start < size; start += segmentSize) {
+                long end = Math.min(size, start + segmentSize);
+                // one byte before, to tell whether the first token started in the previous segment, and enough after
+                // to finish any token started in this one
+                long mapStart = Math.max(0, start - 1);
+                long mapEnd = Math.min(size, end + MAX_TOKEN_LENGTH + 1);
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+                segments.add(new Segment(mapped, mapStart, (int) (start - mapStart), (int) (end - mapStart)));
+            }
+        }
+        final Summary summary = new Summary();
+        if (segments.size() == 1) {
+            summary.add(scan(segments.get(0), sink));
+            return summary;
+        }
+        List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+        for (final Segment segment : segments) {
+            tasks.add(CompletableFuture.runAsync(new Runnable() {
+                @Override public void run() {
+                    Summary segmentSummary = scan(segment, sink);
+                    synchronized (summary) {
+                        summary.add(segmentSummary);
+                    }
+                }
+            }, executor));
+        }
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()])).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+        return summary;
+    }
+
+    private Summary scan(Segment segment, Sink sink) {
+        Summary summary = new Summary();
+        ByteBuffer bytes = segment.bytes;
+        byte[] token = new byte[MAX_TOKEN_LENGTH];
+        int limit = bytes.limit();
+        int pos = segment.start;
+        if (pos > 0 && isTokenByte(bytes.get(pos - 1))) {
+            while (pos < limit && isTokenByte(bytes.get(pos))) {
+                pos++;
+            }
+        }
+        while (pos < segment.end) {
+            if (!isTokenByte(bytes.get(pos))) {
+                pos++;
+                continue;
+            }
+            int tokenStart = pos;
+            while (pos < limit && isTokenByte(bytes.get(pos))) {
+                pos++;
+            }
+            int length = pos - tokenStart;
+            if (length > MAX_TOKEN_LENGTH) {
+                continue;
+            }
+            bytes.position(tokenStart);
+            bytes.get(token, 0, length);
+            if (ticketFactory.endsWithMAC(token, 0, length)) {
+                unmarshal(segment.position + tokenStart, token, length, sink, summary);
+            }
+        }
+        return summary;
+    }
+
+    private void unmarshal(long position, byte[] token, int length, Sink sink, Summary summary) {
+        // a delimiter that cannot start an escape is not part of the ticket, so the ticket starts after the last one
+        int ticketStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (DELIMITERS.indexOf(token[i]) >= 0 && !ticketFactory.startsEscape(token, i, length)) {
+                ticketStart = i + 1;
+            }
+        }
+        InvalidTicketException rejection = null;
+        for (int start = ticketStart; start < length; start = nextDelimiter(token, start, length) + 1) {
+            Ticket ticket;
+            try {
+                ticket = ticketFactory.unmarshal(token, start, length - start);
+            } catch (InvalidTicketException e) {
+                if (rejection == null) {
+                    rejection = e;
+                }
+                continue;
+            }
+            summary.valid++;
+            for (char key : ticket.keySet()) {
+                summary.keyCounts[key]++;
+            }
+            sink.valid(position + start, ticket);
+            return;
+        }
+        if (rejection instanceof TicketMacMismatchException) {
+            summary.mismatched++;
+        } else if (rejection instanceof TicketExpiredException) {
+            summary.expired++;
+        } else {
+            summary.malformed++;
+        }
+        sink.rejected(position + ticketStart, new String(token, ticketStart, length - ticketStart, StandardCharsets.US_ASCII), rejection);
+    }
+
+    private static int nextDelimiter(byte[] token, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (DELIMITERS.indexOf(token[i]) >= 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private boolean isTokenByte(byte b) {
+        return tokenBytes[b & 0xff];
+    }
+
+    private static final class Segment {
+        final ByteBuffer bytes;
+        final long position;
+        final int start;
+        final int end;
+
+        Segment(ByteBuffer bytes, long position, int start, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Totals from a scan. Rejected tickets are counted as mismatched, expired or malformed in the same way as by
+     * {@link TicketMetrics}.
+     */
+    public static final class Summary {
+        private long valid;
+        private long mismatched;
+        private long expired;
+        private long malformed;
+        private final long[] keyCounts = new long[128];
+
+        private Summary() {
+        }
+
+        private void add(Summary other) {
+            valid += other.valid;
+            mismatched += other.mismatched;
+            expired += other.expired;
+            malformed += other.malformed;
+            for (int i = 0; i < keyCounts.length; i++) {
+                keyCounts[i] += other.keyCounts[i];
+            }
+        }
+
+        public long validCount() {
+            return valid;
+        }
+
+        public long mismatchedCount() {
+            return mismatched;
+        }
+
+        public long expiredCount() {
+            return expired;
+        }
+
+        public long malformedCount() {
+            return malformed;
+        }
+
+        /**
+         * Returns, for each key, how many valid tickets had values for it.
+         */
+        public Map<Character, Long> keyCounts() {
+            Map<Character, Long> counts = new TreeMap<Character, Long>();
+            for (int i = 0; i < keyCounts.length; i++) {
+                if (keyCounts[i] > 0) {
+                    counts.put((char) i, keyCounts[i]);
+                }
+            }
+            return Collections.unmodifiableMap(counts);
+        }
+    }
+}
@@ -4,6 +4,10 @@ public class TicketMacMismatchException extends InvalidTicketException {
     private static final long serialVersionUID = 1L;
 
     public TicketMacMismatchException(String ourMac, String theirMac) {
+        this(theirMac);
+    }
+
+    public TicketMacMismatchException(String theirMac) {
         super("MAC invalid: " + theirMac);
     }
 }
@@ -0,0 +1,158 @@
+package com.timgroup.tickets;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link TicketListener} that keeps counts of outcomes and histograms of latencies and ticket lengths, for exporting
+ * to whatever metrics system is in use. Recording never allocates or locks.
+ */
+public final class TicketMetrics implements TicketListener {
+    private final Histogram marshalNanos = new Histogram();
+    private final Histogram unmarshalNanos = new Histogram();
+    private final Histogram macNanos = new Histogram();
+    private final Histogram ticketLengths = new Histogram();
+    private final LongAdder unmarshalled = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder mismatched = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    @Override public void marshalled(int ticketLength, long elapsedNanos) {
+        marshalNanos.record(elapsedNanos);
+        ticketLengths.record(ticketLength);
+    }
+
+    @Override public void unmarshalled(int ticketLength, long elapsedNanos) {
+        unmarshalNanos.record(elapsedNanos);
+        ticketLengths.record(ticketLength);
+        unmarshalled.increment();
+    }
+
+    @Override public void rejected(int ticketLength, long elapsedNanos, InvalidTicketException reason) {
+        unmarshalNanos.record(elapsedNanos);
+        ticketLengths.record(ticketLength);
+        if (reason instanceof TicketMacMismatchException) {
+            mismatched.increment();
+        } else if (reason instanceof TicketExpiredException) {
+            expired.increment();
+        } else {
+            malformed.increment();
+        }
+    }
+
+    @Override public void macComputed(int payloadLength, long elapsedNanos) {
+        macNanos.record(elapsedNanos);
+    }
+
+    public Histogram marshalLatencyNanos() {
+        return marshalNanos;
+    }
+
+    /**
+     * Latency of all unmarshalling attempts, whether or not they succeeded.
+     */
+    public Histogram unmarshalLatencyNanos() {
+        return unmarshalNanos;
+    }
+
+    public Histogram macLatencyNanos() {
+        return macNanos;
+    }
+
+    /**
+     * Lengths of tickets marshalled, and of strings presented for unmarshalling.
+     */
+    public Histogram ticketLengths() {
+        return ticketLengths;
+    }
+
+    public long marshalledCount() {
+        return marshalNanos.count();
+    }
+
+    public long unmarshalledCount() {
+        return unmarshalled.sum();
+    }
+
+    public long malformedCount() {
+        return malformed.sum();
+    }
+
+    public long macMismatchCount() {
+        return mismatched.sum();
+    }
+
+    public long expiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Counts non-negative values in power-of-two buckets: bucket 0 holds zero, and bucket {@code n} holds values from
+     * 2<sup>n-1</sup> to 2<sup>n</sup>-1.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            long clamped = Math.max(0, value);
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(clamped));
+            count.increment();
+            sum.add(clamped);
+            max.accumulate(clamped);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public double mean() {
+            long n = count();
+            return n == 0 ? 0 : (double) sum() / n;
+        }
+
+        public long bucketCount(int bucket) {
+            return buckets.get(bucket);
+        }
+
+        /**
+         * Returns an upper bound for the value below which the given fraction of recorded values fall, accurate to
+         * within a factor of two.
+         */
+        public long valueAtQuantile(double quantile) {
+            if (quantile < 0 || quantile > 1) {
+                throw new IllegalArgumentException("quantile must be between 0 and 1");
+            }
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets.get(i);
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max(), upperBound(i));
+                }
+            }
+            return 0;
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.timgroup.tickets;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Maps the fields of a class to ticket keys, so that objects can be marshalled and unmarshalled directly. Fields may
+ * be String, long, int, boolean, UUID, an enum, or a List of one of those, which holds every value of its key. Longs
+ * and UUIDs are stored in the compact form of {@link Ticket#addLong(char, long)} and {@link Ticket#addUuid(char, UUID)}.
+ * The class needs a no-argument constructor.
+ * <p>
+ * Fields are looked up once, when the schema is built, and accessed through method handles from then on:
+ * <pre>
+ *   TicketSchema&lt;Session&gt; schema = TicketSchema.builder(Session.class)
+ *           .bind('u', "userId")
+ *           .bind('r', "roles")
+ *           .build();
+ *   String marshalled = ticketFactory.marshal(schema, session);
+ * </pre>
+ * Null fields and empty lists are left out of the ticket, and fields whose keys are missing from a ticket keep the
+ * value the constructor gave them.
+ */
+public final class TicketSchema<T> {
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Class<T> type;
+    private final MethodHandle constructor;
+    private final Binding[] bindings;
+
+    private TicketSchema(Class<T> type, MethodHandle constructor, Binding[] bindings) {
+        this.type = type;
+        this.constructor = constructor;
+        this.bindings = bindings;
+    }
+
+    public static <T> Builder<T> builder(Class<T> type) {
+        return new Builder<T>(type);
+    }
+
+    public Ticket toTicket(T value) {
+        Ticket ticket = new Ticket();
+        for (Binding binding : bindings) {
+            binding.write(value, ticket);
+        }
+        return ticket;
+    }
+
+    /**
+     * Creates an object from the values in {@code ticket}, failing if any of them cannot be converted to the type of
+     * its field.
+     */
+    public T fromTicket(Ticket ticket) throws InvalidTicketException {
+        T value = newInstance();
+        for (Binding binding : bindings) {
+            binding.read(ticket, value);
+        }
+        return value;
+    }
+
+    private T newInstance() {
+        try {
+            return type.cast((Object) constructor.invokeExact());
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not construct " + type.getName(), e);
+        }
+    }
+
+    public static final class Builder<T> {
+        private final Class<T> type;
+        private final List<Binding> bindings = new ArrayList<Binding>();
+
+        private Builder(Class<T> type) {
+            this.type = type;
+        }
+
+        /**
+         * Binds the values of {@code key} to the field called {@code fieldName}, which may be private.
+         */
+        public Builder<T> bind(char key, String fieldName) {
+            if (key == 'x') {
+                throw new IllegalArgumentException("key 'x' is reserved for the MAC");
+            }
+            for (Binding binding : bindings) {
+                if (binding.key == key) {
+                    throw new IllegalArgumentException("key '" + key + "' is already bound to " + binding.fieldName);
+                }
+            }
+            Field field = findField(fieldName);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                field.setAccessible(true);
+                MethodHandle getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+                MethodHandle setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+                if (field.getType() == List.class) {
+                    bindings.add(new ListBinding(key, fieldName, getter, setter, ValueType.of(elementType(field), field)));
+                } else {
+                    bindings.add(new Binding(key, fieldName, getter, setter, ValueType.of(field.getType(), field)));
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Cannot access " + field, e);
+            }
+            return this;
+        }
+
+        public TicketSchema<T> build() {
+            MethodHandle constructor;
+            try {
+                Constructor<T> noArgs = type.getDeclaredConstructor();
+                noArgs.setAccessible(true);
+                constructor = MethodHandles.lookup().unreflectConstructor(noArgs).asType(CONSTRUCTOR_TYPE);
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalArgumentException(type.getName() + " needs a no-argument constructor", e);
+            }
+            return new TicketSchema<T>(type, constructor, bindings.toArray(new Binding[bindings.size()]));
+        }
+
+        private Field findField(String fieldName) {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                try {
+                    return c.getDeclaredField(fieldName);
+                } catch (NoSuchFieldException e) {
+                    // try the superclass
+                }
+            }
+            throw new IllegalArgumentException(type.getName() + " has no field " + fieldName);
+        }
+
+        private static Class<?> elementType(Field field) {
+            Type generic = field.getGenericType();
+            if (generic instanceof ParameterizedType) {
+                Type element = ((ParameterizedType) generic).getActualTypeArguments()[0];
+                if (element instanceof Class) {
+                    return (Class<?>) element;
+                }
+            }
+            throw new IllegalArgumentException(field + " must be a List of a concrete type");
+        }
+    }
+
+    private static class Binding {
+        final char key;
+        final String fieldName;
+        final MethodHandle getter;
+        final MethodHandle setter;
+        final ValueType valueType;
+
+        Binding(char key, String fieldName, MethodHandle getter, MethodHandle setter, ValueType valueType) {
+            this.key = key;
+            this.fieldName = fieldName;
+            this.getter = getter;
+            this.setter = setter;
+            this.valueType = valueType;
+        }
+
+        void write(Object object, Ticket ticket) {
+            Object value = get(object);
+            if (value != null) {
+                ticket.set(key, valueType.encode(value));
+            }
+        }
+
+        void read(Ticket ticket, Object object) throws InvalidTicketException {
+            List<String> values = ticket.get(key);
+            if (!values.isEmpty()) {
+                set(object, decode(values.get(0)));
+            }
+        }
+
+        final Object decode(String value) throws InvalidTicketException {
+            try {
+                return valueType.decode(value);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidTicketException("Ticket value for key '" + key + "' is not a valid " + valueType.name);
+            }
+        }
+
+        final Object get(Object object) {
+            try {
+                return (Object) getter.invokeExact(object);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Could not read " + fieldName, e);
+            }
+        }
+
+        final void set(Object object, Object value) {
+            try {
+                setter.invokeExact(object, value);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Could not write " + fieldName, e);
+            }
+        }
+    }
+
+    private static final class ListBinding extends Binding {
+        ListBinding(char key, String fieldName, MethodHandle getter, MethodHandle setter, ValueType valueType) {
+            super(key, fieldName, getter, setter, valueType);
+        }
+
+        @Override void write(Object object, Ticket ticket) {
+            List<?> list = (List<?>) get(object);
+            if (list == null || list.isEmpty()) {
+                return;
+            }
+            List<String> encoded = new ArrayList<String>(list.size());
+            for (Object value : list) {
+                encoded.add(valueType.encode(value));
+            }
+            ticket.set(key, encoded);
+        }
+
+        @Override void read(Ticket ticket, Object object) throws InvalidTicketException {
+            List<String> values = ticket.get(key);
+            if (values.isEmpty()) {
+                return;
+            }
+            List<Object> decoded = new ArrayList<Object>(values.size());
+            for (String value : values) {
+                decoded.add(decode(value));
+            }
+            set(object, Collections.unmodifiableList(decoded));
+        }
+    }
+
+    /**
+     * Converts field values to and from strings. Decoding failures are reported as IllegalArgumentException, which
+     * NumberFormatException extends.
+     */
+    private abstract static class ValueType {
+        final String name;
+
+        ValueType(String name) {
+            this.name = name;
+        }
+
+        abstract String encode(Object value);
+
+        abstract Object decode(String value);
+
+        static ValueType of(Class<?> type, Field field) {
+            if (type == String.class) {
+                return STRING;
+            }
+            if (type == long.class || type == Long.class) {
+                return LONG;
+            }
+            if (type == int.class || type == Integer.class) {
+                return INT;
+            }
+            if (type == boolean.class || type == Boolean.class) {
+                return BOOLEAN;
+            }
+            if (type == UUID.class) {
+                return UUID_TYPE;
+            }
+            if (type.isEnum()) {
+                return new EnumType(type);
+            }
+            throw new IllegalArgumentException(field + " has a type that cannot be put in a ticket");
+        }
+
+        private static final ValueType STRING = new ValueType("string") {
+            @Override String encode(Object value) {
+                return (String) value;
+            }
+
+            @Override Object decode(String value) {
+                return value;
+            }
+        };
+
+        private static final ValueType LONG = new ValueType("long") {
+            @Override String encode(Object value) {
+                return CompactValues.encodeLong((Long) value);
+            }
+
+            @Override Object decode(String value) {
+                return CompactValues.decodeLong(value);
+            }
+        };
+
+        private static final ValueType INT = new ValueType("int") {
+            @Override String encode(Object value) {
+                return Integer.toString((Integer) value);
+            }
+
+            @Override Object decode(String value) {
+                return Integer.parseInt(value);
+            }
+        };
+
+        private static final ValueType BOOLEAN = new ValueType("boolean") {
+            @Override String encode(Object value) {
+                return ((Boolean) value) ? "1" : "0";
+            }
+
+            @Override Object decode(String value) {
+                if (value.equals("1")) {
+                    return Boolean.TRUE;
+                }
+                if (value.equals("0")) {
+                    return Boolean.FALSE;
+                }
+                throw new IllegalArgumentException(value);
+            }
+        };
+
+        private static final ValueType UUID_TYPE = new ValueType("UUID") {
+            @Override String encode(Object value) {
+                return CompactValues.encodeUuid((UUID) value);
+            }
+
+            @Override Object decode(String value) {
+                return CompactValues.decodeUuid(value);
+            }
+        };
+    }
+
+    private static final class EnumType extends ValueType {
+        private final Enum<?>[] constants;
+
+        EnumType(Class<?> type) {
+            super(type.getSimpleName());
+            this.constants = (Enum<?>[]) type.getEnumConstants();
+        }
+
+        @Override String encode(Object value) {
+            return ((Enum<?>) value).name();
+        }
+
+        @Override Object decode(String value) {
+            for (Enum<?> constant : constants) {
+                if (constant.name().equals(value)) {
+                    return constant;
+                }
+            }
+            throw new IllegalArgumentException(value);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.timgroup.tickets;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands out one canonical String for each short value that tickets keep repeating, such as role names and tenant
+ * codes, so that decoding them does not allocate and the tickets held in session caches share their values; see
+ * {@link TicketFactory#withValueDictionary(TicketValueDictionary)}.
+ * <p>
+ * Values are kept in a fixed-size hash table. A value is only admitted the second time it is seen in a row at its
+ * slot, so a stream of one-off values such as ids cannot push out the values that do repeat; a value that is
+ * admitted replaces whatever was in its slot. The table is read and written without locks, which is safe because
+ * Strings are immutable; at worst a value is admitted twice or an entry is lost.
+ */
+public final class TicketValueDictionary {
+    private final String[] values;
+    private final int[] candidates;
+    private final int mask;
+    private final int maxValueLength;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumSize how many values to keep, rounded up to a power of two
+     * @param maxValueLength the length above which values are not looked up at all
+     */
+    public TicketValueDictionary(int maximumSize, int maxValueLength) {
+        if (maximumSize <= 0 || maximumSize > 1 << 30) {
+            throw new IllegalArgumentException("maximumSize must be positive and at most 2^30");
+        }
+        if (maxValueLength <= 0) {
+            throw new IllegalArgumentException("maxValueLength must be positive");
+        }
+        int capacity = Integer.highestOneBit(maximumSize);
+        if (capacity < maximumSize) {
+            capacity *= 2;
+        }
+        this.values = new String[capacity];
+        this.candidates = new int[capacity];
+        this.mask = capacity - 1;
+        this.maxValueLength = maxValueLength;
+    }
+
+    /**
+     * Returns the characters of {@code input} between {@code start} and {@code end} as a String, which is the
+     * canonical instance if the value has been seen often enough.
+     */
+    public String intern(CharSequence input, int start, int end) {
+        if (end - start > maxValueLength) {
+            return input.subSequence(start, end).toString();
+        }
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + input.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String value = values[slot];
+        if (value != null && matches(value, input, start, end)) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+        String decoded = input.subSequence(start, end).toString();
+        // a zero hash marks an empty candidate slot, so values hashing to zero are never admitted
+        if (hash != 0 && candidates[slot] == hash) {
+            if (value != null) {
+                evictions.increment();
+            }
+            values[slot] = decoded;
+            candidates[slot] = 0;
+        } else {
+            candidates[slot] = hash;
+        }
+        return decoded;
+    }
+
+    public long size() {
+        long size = 0;
+        for (String value : values) {
+            if (value != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the fraction of lookups that found a canonical value, or zero if there have been none.
+     */
+    public double hitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    private static boolean matches(String value, CharSequence input, int start, int end) {
+        if (value.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i - start) != input.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,171 @@
+package com.timgroup.tickets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a ticket field by field straight to its destination, feeding each encoded chunk to the MAC as it goes, so no
+ * {@link Ticket} or intermediate string is needed. Obtain one from {@link TicketFactory#newWriter(Appendable)} or its
+ * overloads, add fields, then call {@link #finish()} to append the MAC.
+ * <p>
+ * Fields are written in the order they are added. {@link TicketFactory#marshal(Ticket)} groups values by key; add
+ * them in that order to produce an identical string, although tickets with ungrouped keys unmarshal just the same.
+ */
+public final class TicketWriter {
+    private static final int CHUNK_SIZE = 512;
+
+    private final TicketFactory ticketFactory;
+    private final char separator;
+    private final Target target;
+    private final MacCalculation mac;
+    private final TicketListener listener;
+    private final long startTime;
+    private final StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 16);
+    private int length;
+    private int payloadLength;
+    private long macNanos;
+    private boolean empty = true;
+    private boolean finished;
+
+    TicketWriter(TicketFactory ticketFactory, char separator, MacCalculation mac, Target target, TicketListener listener) {
+        this.ticketFactory = ticketFactory;
+        this.separator = separator;
+        this.mac = mac;
+        this.target = target;
+        this.listener = listener;
+        this.startTime = listener == TicketListener.NONE ? 0 : System.nanoTime();
+    }
+
+    public TicketWriter add(char key, String value) throws IOException {
+        ticketFactory.checkKey(key);
+        checkNotFinished();
+        startField(key);
+        ticketFactory.encodeValue(value, chunk);
+        if (chunk.length() >= CHUNK_SIZE) {
+            flushPayload();
+        }
+        return this;
+    }
+
+    /**
+     * Adds a field whose value needs no escaping, such as the expiry the factory writes first.
+     */
+    void addEncoded(char key, String encodedValue) {
+        startField(key);
+        chunk.append(encodedValue);
+    }
+
+    /**
+     * Appends the MAC, completing the ticket, and reports it to the factory's listener: the MAC with the time spent
+     * calculating it, and the ticket as marshalled, timed from when the writer was created. No more fields can be
+     * added afterwards.
+     */
+    public void finish() throws IOException {
+        checkNotFinished();
+        flushPayload();
+        finished = true;
+        if (!empty) {
+            chunk.append(separator);
+        }
+        String macValue;
+        if (listener == TicketListener.NONE) {
+            macValue = mac.finish();
+        } else {
+            long macStart = System.nanoTime();
+            macValue = mac.finish();
+            macNanos += System.nanoTime() - macStart;
+        }
+        chunk.append('x').append(macValue);
+        target.write(chunk);
+        length += chunk.length();
+        chunk.setLength(0);
+        if (listener != TicketListener.NONE) {
+            listener.macComputed(payloadLength, macNanos);
+            listener.marshalled(length, System.nanoTime() - startTime);
+        }
+    }
+
+    private void startField(char key) {
+        if (!empty) {
+            chunk.append(separator);
+        }
+        chunk.append(key);
+        empty = false;
+    }
+
+    private void flushPayload() throws IOException {
+        if (listener == TicketListener.NONE) {
+            mac.update(chunk, 0, chunk.length());
+        } else {
+            long macStart = System.nanoTime();
+            mac.update(chunk, 0, chunk.length());
+            macNanos += System.nanoTime() - macStart;
+        }
+        payloadLength += chunk.length();
+        target.write(chunk);
+        length += chunk.length();
+        chunk.setLength(0);
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("Ticket has already been finished");
+        }
+    }
+
+    /**
+     * Receives the ticket as it is written. Escaped values are pure ASCII; only keys and configured separators can
+     * be anything else, and byte targets write those as UTF-8, matching the bytes that were MACed.
+     */
+    interface Target {
+        void write(CharSequence chars) throws IOException;
+    }
+
+    static Target to(final Appendable output) {
+        return new Target() {
+            @Override public void write(CharSequence chars) throws IOException {
+                output.append(chars);
+            }
+        };
+    }
+
+    static Target to(final ByteBuffer output) {
+        return new Target() {
+            @Override public void write(CharSequence chars) {
+                for (int i = 0; i < chars.length(); i++) {
+                    char c = chars.charAt(i);
+                    if (c < 0x80) {
+                        output.put((byte) c);
+                    } else {
+                        output.put(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        };
+    }
+
+    static Target to(final OutputStream output) {
+        return new Target() {
+            private final byte[] bytes = new byte[CHUNK_SIZE];
+
+            @Override public void write(CharSequence chars) throws IOException {
+                int length = 0;
+                for (int i = 0; i < chars.length(); i++) {
+                    char c = chars.charAt(i);
+                    if (c >= 0x80 || length == bytes.length) {
+                        output.write(bytes, 0, length);
+                        length = 0;
+                    }
+                    if (c < 0x80) {
+                        bytes[length++] = (byte) c;
+                    } else {
+                        output.write(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                output.write(bytes, 0, length);
+            }
+        };
+    }
+}
@@ -0,0 +1,165 @@
+package com.timgroup.tickets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.junit.Test;
+
+public class BinaryTicketCodecTest {
+    private final BinaryTicketCodec codec = new BinaryTicketCodec(HashMacGenerator.sha1("secret", 0, 8));
+
+    @Test public void round_trips_empty_ticket() throws Exception {
+        assertTrue(codec.unmarshal(codec.marshal(new Ticket())).keySet().isEmpty());
+    }
+
+    @Test public void round_trips_grouped_values_in_key_order() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "1344808e-5029-489b-9f44-c95923e81da0");
+        ticket.add('r', "admin");
+        ticket.add('u', "");
+        ticket.add('\u20ac', "a,b=c+d \u00a3\u20ac\ud83d\ude00");
+        Ticket result = codec.unmarshal(codec.marshal(ticket));
+        assertEquals(Arrays.asList('u', 'r', '\u20ac'), new ArrayList<Character>(result.keySet()));
+        assertEquals(Arrays.asList("1344808e-5029-489b-9f44-c95923e81da0", ""), result.get('u'));
+        assertEquals(Arrays.asList("admin"), result.get('r'));
+        assertEquals(Arrays.asList("a,b=c+d \u00a3\u20ac\ud83d\ude00"), result.get('\u20ac'));
+    }
+
+    @Test public void produces_url_safe_output() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('j', "{\"name\": \"Jos\u00e9\"}");
+        String marshalled = codec.marshal(ticket);
+        assertTrue(marshalled, marshalled.matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test public void is_smaller_than_text_format_for_escaped_values() throws Exception {
+        HashMacGenerator macGenerator = HashMacGenerator.sha1("secret", 0, 8);
+        Ticket ticket = new Ticket();
+        ticket.add('j', "{\"currency\": \"\u20ac\", \"names\": [\"Jos\u00e9 M\u00fcller\", \"Fran\u00e7ois\"]}");
+        String binary = new BinaryTicketCodec(macGenerator).marshal(ticket);
+        String text = new TicketFactory(macGenerator).marshal(ticket);
+        assertTrue(binary.length() + " < " + text.length(), binary.length() < text.length());
+    }
+
+    @Test(expected = TicketMacMismatchException.class) public void rejects_tampered_ticket() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        byte[] bytes = Base64.getUrlDecoder().decode(codec.marshal(ticket));
+        bytes[4] = 'A';
+        codec.unmarshal(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes));
+    }
+
+    @Test(expected = TicketMacMismatchException.class) public void rejects_ticket_signed_with_other_key() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        codec.unmarshal(new BinaryTicketCodec(HashMacGenerator.sha1("other", 0, 8)).marshal(ticket));
+    }
+
+    @Test(expected = InvalidTicketException.class) public void rejects_text_format_ticket() throws Exception {
+        codec.unmarshal("u1,x5dbe5337");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void rejects_empty_string() throws Exception {
+        codec.unmarshal("");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void rejects_truncated_ticket() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        byte[] bytes = Base64.getUrlDecoder().decode(codec.marshal(ticket));
+        codec.unmarshal(Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(bytes, 6)));
+    }
+
+    @Test(expected = InvalidTicketException.class) public void rejects_oversized_length() throws Exception {
+        codec.unmarshal(Base64.getUrlEncoder().withoutPadding().encodeToString(new byte[] { 1, 1, 'u', (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 }));
+    }
+
+    @Test public void rejects_ticket_with_spare_bits_set() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        String marshalled = codec.marshal(ticket);
+        assertTrue(marshalled.length() % 4 != 0);
+        String digits = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        char last = marshalled.charAt(marshalled.length() - 1);
+        String tampered = marshalled.substring(0, marshalled.length() - 1) + digits.charAt(digits.indexOf(last) + 1);
+        assertArrayEquals(Base64.getUrlDecoder().decode(marshalled), Base64.getUrlDecoder().decode(tampered));
+        try {
+            codec.unmarshal(tampered);
+            fail("Expected InvalidTicketException");
+        } catch (InvalidTicketException e) {
+            assertFalse(e instanceof TicketMacMismatchException);
+        }
+    }
+
+    @Test(expected = InvalidTicketException.class) public void rejects_padded_ticket() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        codec.unmarshal(Base64.getUrlEncoder().encodeToString(Base64.getUrlDecoder().decode(codec.marshal(ticket))));
+    }
+
+    @Test public void rejects_input_over_limits_before_checking_mac() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        ticket.add('r', "admin");
+        String marshalled = codec.marshal(ticket);
+        BinaryTicketCodec limited = new BinaryTicketCodec(new TicketMacGenerator() {
+            @Override public String generateMAC(String input) {
+                throw new AssertionError("MAC calculated for oversized input");
+            }
+        });
+        assertRejected(limited.withLimits(marshalled.length() - 1, 2, 5), marshalled);
+        assertRejected(limited.withLimits(marshalled.length(), 1, 5), marshalled);
+        assertRejected(limited.withLimits(marshalled.length(), 2, 4), marshalled);
+    }
+
+    @Test public void accepts_input_within_limits() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        ticket.add('r', "admin");
+        String marshalled = codec.marshal(ticket);
+        assertEquals(Arrays.asList("admin"), codec.withLimits(marshalled.length(), 2, 5).unmarshal(marshalled).get('r'));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void refuses_to_marshal_lone_surrogate() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "a\ud83db");
+        codec.marshal(ticket);
+    }
+
+    @Test public void works_with_key_ring() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", HashMacGenerator.sha256("secret", 0, 8));
+        BinaryTicketCodec keyRingCodec = new BinaryTicketCodec(keyRing);
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        String marshalled = keyRingCodec.marshal(ticket);
+        keyRing.addKey("k2", HashMacGenerator.sha256("new secret", 0, 8));
+        keyRing.useForSigning("k2");
+        assertEquals(Arrays.asList("alice"), keyRingCodec.unmarshal(marshalled).get('u'));
+    }
+
+    @Test public void works_with_ticket_cache() throws Exception {
+        TicketCache cache = new TicketCache(codec, 10);
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        String marshalled = codec.marshal(ticket);
+        assertEquals(Arrays.asList("alice"), cache.unmarshal(marshalled).get('u'));
+        assertEquals(Arrays.asList("alice"), cache.unmarshal(marshalled).get('u'));
+        assertEquals(1, cache.hitCount());
+    }
+
+    private static void assertRejected(BinaryTicketCodec codec, String input) {
+        try {
+            codec.unmarshal(input);
+            fail("Expected InvalidTicketException");
+        } catch (InvalidTicketException e) {
+            assertFalse(e instanceof TicketMacMismatchException);
+        }
+    }
+}
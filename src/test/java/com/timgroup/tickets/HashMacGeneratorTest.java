@@ -1,12 +1,22 @@
 package com.timgroup.tickets;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
 import com.timgroup.tickets.HashMacGenerator;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class HashMacGeneratorTest {
     // perl -l -MDigest::HMAC -MDigest::SHA \
@@ -75,4 +85,108 @@ public class HashMacGeneratorTest {
         HashMacGenerator generator = HashMacGenerator.sha256("secret", 1, 4);
         assertEquals("2c16b75b", generator.generateMAC("data"));
     }
+
+    @Test public void generates_sha1_hmac_for_character_range() throws Exception {
+        HashMacGenerator generator = HashMacGenerator.sha1("secret");
+        assertEquals("9818e3306ba5ac267b5f2679fe4abd37e6cd7b54", generator.generateMAC(new StringBuilder("[data]"), 1, 5));
+    }
+
+    @Test public void generates_sha1_hmac_for_byte_range() throws Exception {
+        HashMacGenerator generator = HashMacGenerator.sha1("secret");
+        assertEquals("9818e3306ba5ac267b5f2679fe4abd37e6cd7b54", generator.generateMAC("[data]".getBytes("UTF-8"), 1, 4));
+    }
+
+    @Test public void generates_sha1_hmac_for_byte_buffer() throws Exception {
+        HashMacGenerator generator = HashMacGenerator.sha1("secret");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(6);
+        buffer.put("[data]".getBytes("UTF-8")).flip();
+        buffer.position(1).limit(5);
+        assertEquals("9818e3306ba5ac267b5f2679fe4abd37e6cd7b54", generator.generateMAC(buffer));
+        assertEquals(5, buffer.position());
+    }
+
+    @Test public void encodes_character_range_as_utf8() throws Exception {
+        HashMacGenerator generator = HashMacGenerator.sha256("secret");
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            input.append("a\u00e9\u20ac\ud83d\ude00");
+        }
+        input.append("\ud83d!\ude00");
+        byte[] bytes = input.toString().getBytes("UTF-8");
+        assertEquals(generator.generateMAC(bytes, 0, bytes.length), generator.generateMAC(input, 0, input.length()));
+    }
+
+    @Test public void verifies_mac_slice() throws Exception {
+        HashMacGenerator generator = HashMacGenerator.sha1("secret", 1, 4);
+        assertTrue(generator.verifyMAC("data", 0, 4, "x18e3306b", 1, 9));
+    }
+
+    @Test public void verifies_mac_slice_for_byte_range() throws Exception {
+        HashMacGenerator generator = HashMacGenerator.sha1("secret", 1, 4);
+        byte[] bytes = "..data".getBytes(StandardCharsets.US_ASCII);
+        assertTrue(generator.verifyMAC(bytes, 2, 4, "x18e3306b", 1, 9));
+        assertFalse(generator.verifyMAC(bytes, 2, 4, "18e3306c", 0, 8));
+        assertFalse(generator.verifyMAC(bytes, 1, 4, "18e3306b", 0, 8));
+    }
+
+    @Test public void rejects_mismatched_mac() throws Exception {
+        HashMacGenerator generator = HashMacGenerator.sha1("secret", 1, 4);
+        assertFalse(generator.verifyMAC("data", 0, 4, "18e3306c", 0, 8));
+        assertFalse(generator.verifyMAC("data", 0, 4, "18E3306B", 0, 8));
+        assertFalse(generator.verifyMAC("data", 0, 4, "18e3306", 0, 7));
+        assertFalse(generator.verifyMAC("data", 0, 4, "18e3306b00", 0, 10));
+        assertFalse(generator.verifyMAC("data", 0, 4, "18e3306\u0130", 0, 8));
+    }
+
+    @Test public void checks_shape_of_mac() throws Exception {
+        HashMacGenerator generator = HashMacGenerator.sha1("secret", 1, 4);
+        assertTrue(generator.isWellFormedMAC("x18e3306b", 1, 9));
+        assertFalse(generator.isWellFormedMAC("18E3306B", 0, 8));
+        assertFalse(generator.isWellFormedMAC("18e3306", 0, 7));
+        assertFalse(generator.isWellFormedMAC("18e3306b00", 0, 10));
+    }
+
+    @Test public void default_verification_compares_generated_mac() throws Exception {
+        ExtendedMacGenerator generator = ExtendedMacGenerator.of(new TicketMacGenerator() {
+            @Override public String generateMAC(String input) {
+                return input.toUpperCase();
+            }
+        });
+        assertTrue(generator.verifyMAC("data", 0, 4, "DATA", 0, 4));
+        assertFalse(generator.verifyMAC("data", 0, 4, "DATE", 0, 4));
+        assertFalse(generator.verifyMAC("data", 0, 4, "DAT", 0, 3));
+    }
+
+    @Test public void generates_same_mac_on_repeated_calls() throws Exception {
+        HashMacGenerator generator = HashMacGenerator.sha1("secret");
+        assertEquals("9818e3306ba5ac267b5f2679fe4abd37e6cd7b54", generator.generateMAC("data"));
+        assertEquals("b39085119a5487ed66b6736880fe25ca55b361aa", generator.generateMAC("\u20ac"));
+        assertEquals("9818e3306ba5ac267b5f2679fe4abd37e6cd7b54", generator.generateMAC("data"));
+    }
+
+    @Test public void generates_mac_without_keeping_idle_instances() throws Exception {
+        HashMacGenerator generator = new HashMacGenerator("secret".getBytes("UTF-8"), "HmacSHA1", 1, 4, 0);
+        assertEquals("18e3306b", generator.generateMAC("data"));
+        assertEquals("18e3306b", generator.generateMAC("data"));
+    }
+
+    @Test public void generates_same_mac_from_many_threads_at_once() throws Exception {
+        final HashMacGenerator generator = HashMacGenerator.sha256("secret");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override public String call() throws Exception {
+                        return generator.generateMAC("data");
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals("1b2c16b75bd2a870c114153ccda5bcfca63314bc722fa160d690de133ccbb9db", result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -0,0 +1,128 @@
+package com.timgroup.tickets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class KeyRingMacGeneratorTest {
+    @Test public void prefixes_mac_with_signing_key_id() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", HashMacGenerator.sha1("secret", 1, 4));
+        assertEquals("k1:18e3306b", keyRing.generateMAC("data"));
+        assertEquals("k1:18e3306b", keyRing.generateMAC(new StringBuilder("data"), 0, 4));
+    }
+
+    @Test public void verifies_mac_with_key_named_in_ticket() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", HashMacGenerator.sha1("secret", 1, 4));
+        keyRing.addKey("k2", HashMacGenerator.sha1("other", 1, 4));
+        String oldMac = keyRing.generateMAC("data");
+        keyRing.useForSigning("k2");
+        String newMac = keyRing.generateMAC("data");
+        assertTrue(newMac.startsWith("k2:"));
+        assertTrue(keyRing.verifyMAC("data", 0, 4, oldMac, 0, oldMac.length()));
+        assertTrue(keyRing.verifyMAC("data", 0, 4, newMac, 0, newMac.length()));
+    }
+
+    @Test public void computes_only_the_named_keys_mac() throws Exception {
+        CountingMacGenerator first = new CountingMacGenerator();
+        CountingMacGenerator second = new CountingMacGenerator();
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", first);
+        keyRing.addKey("k2", second);
+        assertTrue(keyRing.verifyMAC("data", 0, 4, "k2:mac", 0, 6));
+        assertEquals(0, first.calls);
+        assertEquals(1, second.calls);
+    }
+
+    @Test public void rejects_mac_for_retired_or_unknown_key() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", HashMacGenerator.sha1("secret", 1, 4));
+        keyRing.addKey("k2", HashMacGenerator.sha1("other", 1, 4));
+        keyRing.useForSigning("k2");
+        keyRing.retireKey("k1");
+        assertEquals(Arrays.asList("k2"), keyRing.keyIds());
+        assertFalse(keyRing.verifyMAC("data", 0, 4, "k1:18e3306b", 0, 11));
+        assertFalse(keyRing.verifyMAC("data", 0, 4, "k3:18e3306b", 0, 11));
+        assertFalse(keyRing.verifyMAC("data", 0, 4, "18e3306b", 0, 8));
+    }
+
+    @Test public void checks_shape_of_mac_against_named_key() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", HashMacGenerator.sha1("secret", 1, 4));
+        assertTrue(keyRing.isWellFormedMAC("k1:18e3306b", 0, 11));
+        assertFalse(keyRing.isWellFormedMAC("k1:18e3306", 0, 10));
+        assertFalse(keyRing.isWellFormedMAC("k9:18e3306b", 0, 11));
+        assertFalse(keyRing.isWellFormedMAC("18e3306b", 0, 8));
+    }
+
+    @Test public void round_trips_tickets_signed_before_rotation() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("2019a", HashMacGenerator.sha256("secret", 0, 8));
+        TicketFactory ticketFactory = new TicketFactory(keyRing);
+        Ticket ticket = new Ticket();
+        ticket.add('u', "1344808e-5029-489b-9f44-c95923e81da0");
+        String marshalled = ticketFactory.marshal(ticket);
+        keyRing.addKey("2019b", HashMacGenerator.sha256("new secret", 0, 8));
+        keyRing.useForSigning("2019b");
+        assertThat(ticketFactory.unmarshal(marshalled).getOne('u').get(), is("1344808e-5029-489b-9f44-c95923e81da0"));
+        assertTrue(ticketFactory.marshal(ticket).contains(",x2019b:"));
+    }
+
+    @Test public void re_signs_unchanged_tickets_with_new_signing_key() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", HashMacGenerator.sha1("secret", 0, 4));
+        TicketFactory ticketFactory = new TicketFactory(keyRing);
+        Ticket ticket = new Ticket();
+        ticket.add('u', "plain");
+        String marshalled = ticketFactory.marshal(ticket);
+        Ticket unmarshalled = ticketFactory.unmarshal(marshalled);
+        assertEquals(marshalled, ticketFactory.marshal(unmarshalled));
+        keyRing.addKey("k2", HashMacGenerator.sha1("new secret", 0, 4));
+        keyRing.useForSigning("k2");
+        String remarshalled = ticketFactory.marshal(unmarshalled);
+        assertTrue(remarshalled, remarshalled.startsWith("uplain,xk2:"));
+        keyRing.retireKey("k1");
+        assertThat(ticketFactory.unmarshal(remarshalled).getOne('u').get(), is("plain"));
+    }
+
+    @Test public void only_signing_key_macs_are_current() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", new CountingMacGenerator());
+        keyRing.addKey("k12", new CountingMacGenerator());
+        assertTrue(keyRing.isCurrentMAC("k1:mac", 0, 6));
+        assertFalse(keyRing.isCurrentMAC("k12:mac", 0, 7));
+        assertFalse(keyRing.isCurrentMAC("k1", 0, 2));
+    }
+
+    @Test public void refuses_to_retire_signing_key() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", new CountingMacGenerator());
+        try {
+            keyRing.retireKey("k1");
+            fail("expected signing key to be kept");
+        } catch (IllegalArgumentException e) {
+            assertEquals(Arrays.asList("k1"), keyRing.keyIds());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void refuses_duplicate_key_id() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", new CountingMacGenerator());
+        keyRing.addKey("k1", new CountingMacGenerator());
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void refuses_key_id_with_punctuation() throws Exception {
+        new KeyRingMacGenerator("k:1", new CountingMacGenerator());
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void refuses_long_key_id() throws Exception {
+        new KeyRingMacGenerator("abcdefghi", new CountingMacGenerator());
+    }
+
+    private static final class CountingMacGenerator implements TicketMacGenerator {
+        int calls;
+
+        @Override public String generateMAC(String input) {
+            calls++;
+            return "mac";
+        }
+    }
+}
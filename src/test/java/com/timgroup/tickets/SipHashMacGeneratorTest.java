@@ -0,0 +1,79 @@
+package com.timgroup.tickets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SipHashMacGeneratorTest {
+    private static final byte[] KEY = sequence(16);
+
+    @Test public void generates_reference_test_vectors() throws Exception {
+        SipHashMacGenerator generator = new SipHashMacGenerator(KEY);
+        assertEquals("310e0edd47db6f72", generator.generateMAC(sequence(0), 0, 0));
+        assertEquals("fd67dc93c539f874", generator.generateMAC(sequence(1), 0, 1));
+        assertEquals("6224939a79f5f593", generator.generateMAC(sequence(8), 0, 8));
+        assertEquals("e545be4961ca29a1", generator.generateMAC(sequence(15), 0, 15));
+    }
+
+    @Test public void generates_slice() throws Exception {
+        SipHashMacGenerator generator = new SipHashMacGenerator(KEY, 2, 4);
+        assertEquals("be4961ca", generator.generateMAC(sequence(15), 0, 15));
+        assertArrayEquals(new byte[] { (byte) 0xbe, 0x49, 0x61, (byte) 0xca }, generator.generateMACBytes(sequence(15), 0, 15));
+    }
+
+    @Test public void generates_same_mac_for_characters_bytes_and_byte_buffers() throws Exception {
+        SipHashMacGenerator generator = new SipHashMacGenerator(KEY);
+        String input = "u1344808e-5029-489b-9f44-c95923e81da0,ra\u00a3\u20ac\ud83d\ude00";
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        String expected = generator.generateMAC(bytes, 0, bytes.length);
+        assertEquals(expected, generator.generateMAC(input));
+        assertEquals(expected, generator.generateMAC("..." + input + "...", 3, input.length() + 3));
+        assertEquals(expected, generator.generateMAC(ByteBuffer.wrap(bytes)));
+        MacCalculation calculation = generator.startMAC();
+        calculation.update(input, 0, 7);
+        calculation.update(input, 7, input.length());
+        assertEquals(expected, calculation.finish());
+    }
+
+    @Test public void verifies_mac() throws Exception {
+        SipHashMacGenerator generator = new SipHashMacGenerator(KEY, 0, 4);
+        byte[] bytes = "data".getBytes(StandardCharsets.US_ASCII);
+        String mac = generator.generateMAC("data");
+        assertTrue(generator.verifyMAC("data", 0, 4, "x" + mac, 1, 9));
+        assertTrue(generator.verifyMAC(bytes, 0, 4, mac, 0, 8));
+        assertTrue(generator.verifyMACBytes(bytes, 0, 4, generator.generateMACBytes(bytes, 0, 4), 0, 4));
+        assertFalse(generator.verifyMAC("date", 0, 4, mac, 0, 8));
+        assertFalse(generator.verifyMAC("data", 0, 4, mac.toUpperCase(), 0, 8));
+        assertFalse(generator.verifyMAC("data", 0, 4, mac, 0, 7));
+        assertFalse(generator.verifyMACBytes(bytes, 0, 3, generator.generateMACBytes(bytes, 0, 4), 0, 4));
+    }
+
+    @Test public void round_trips_tickets() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(new SipHashMacGenerator(KEY, 0, 4));
+        Ticket ticket = new Ticket();
+        ticket.add('u', "1344808e-5029-489b-9f44-c95923e81da0");
+        assertEquals(ticket.get('u'), ticketFactory.unmarshal(ticketFactory.marshal(ticket)).get('u'));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void rejects_short_key() throws Exception {
+        new SipHashMacGenerator(sequence(8));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void rejects_slice_beyond_mac() throws Exception {
+        new SipHashMacGenerator(KEY, 4, 5);
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,98 @@
+package com.timgroup.tickets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class TicketBatchTest {
+    private final TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+
+    @Test public void marshals_and_unmarshals_in_input_order_on_many_threads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            TicketBatch batch = new TicketBatch(ticketFactory, executor, 4);
+            List<Ticket> tickets = new ArrayList<Ticket>();
+            for (int i = 0; i < 10000; i++) {
+                Ticket ticket = new Ticket();
+                ticket.add('n', Integer.toString(i));
+                tickets.add(ticket);
+            }
+            List<String> marshalled = batch.marshalAll(tickets);
+            assertEquals(10000, marshalled.size());
+            assertEquals(ticketFactory.marshal(tickets.get(1234)), marshalled.get(1234));
+
+            List<TicketBatch.Result> results = batch.unmarshalAll(marshalled);
+            assertEquals(10000, results.size());
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(Arrays.asList(Integer.toString(i)), results.get(i).get().get('n'));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void reports_each_invalid_ticket_without_failing_the_batch() throws Exception {
+        TicketBatch batch = new TicketBatch(ticketFactory);
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        String valid = ticketFactory.marshal(ticket);
+        List<TicketBatch.Result> results = batch.unmarshalAll(Stream.of(valid, "a1,xbadbad00", "", valid)).collect(Collectors.toList());
+        assertTrue(results.get(0).isValid());
+        assertNull(results.get(0).failure());
+        assertFalse(results.get(1).isValid());
+        assertTrue(results.get(1).failure() instanceof TicketMacMismatchException);
+        assertFalse(results.get(2).isValid());
+        assertEquals(Arrays.asList("1"), results.get(3).get().get('a'));
+    }
+
+    @Test public void unmarshals_unbounded_stream_as_it_is_consumed() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        final String valid = ticketFactory.marshal(ticket);
+        final AtomicInteger read = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Stream<String> inputs = Stream.generate(() -> {
+                read.incrementAndGet();
+                return valid;
+            });
+            List<TicketBatch.Result> results = new TicketBatch(ticketFactory, executor, 2).unmarshalAll(inputs).limit(1000).collect(Collectors.toList());
+            assertEquals(1000, results.size());
+            for (TicketBatch.Result result : results) {
+                assertTrue(result.isValid());
+            }
+            assertTrue(read.get() + " read", read.get() < 5000);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = TicketMacMismatchException.class) public void result_rethrows_failure() throws Exception {
+        new TicketBatch(ticketFactory).unmarshalAll(Arrays.asList("a1,xbadbad00")).get(0).get();
+    }
+
+    @Test(expected = NullPointerException.class) public void propagates_unexpected_exceptions() throws Exception {
+        List<String> inputs = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            inputs.add(i == 500 ? null : "a1,xbadbad00");
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            new TicketBatch(ticketFactory, executor, 4).unmarshalAll(inputs);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.timgroup.tickets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TicketCacheTest {
+    private final CountingMacGenerator macGenerator = new CountingMacGenerator();
+    private final TicketFactory ticketFactory = new TicketFactory(macGenerator);
+    private final AtomicLong now = new AtomicLong();
+
+    @Test public void returns_cached_ticket_for_same_string() throws Exception {
+        TicketCache cache = new TicketCache(ticketFactory, 10);
+        Ticket first = cache.unmarshal("u1,xnoodles");
+        Ticket second = cache.unmarshal("u1,xnoodles");
+        assertSame(first, second);
+        assertEquals(Arrays.asList("1"), second.get('u'));
+        assertEquals(1, macGenerator.calls);
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test public void evicts_least_recently_used_ticket_when_full() throws Exception {
+        TicketCache cache = new TicketCache(ticketFactory, 2);
+        Ticket first = cache.unmarshal("u1,xnoodles");
+        cache.unmarshal("u2,xnoodles");
+        cache.unmarshal("u1,xnoodles");
+        cache.unmarshal("u3,xnoodles");
+        assertEquals(1, cache.evictionCount());
+        assertEquals(2, cache.size());
+        assertSame(first, cache.unmarshal("u1,xnoodles"));
+        assertEquals(3, macGenerator.calls);
+        cache.unmarshal("u2,xnoodles");
+        assertEquals(4, macGenerator.calls);
+    }
+
+    @Test public void expires_tickets_after_time_to_live() throws Exception {
+        TicketCache cache = new TicketCache(ticketFactory, 10, 1000, now::get);
+        Ticket first = cache.unmarshal("u1,xnoodles");
+        now.set(999);
+        assertSame(first, cache.unmarshal("u1,xnoodles"));
+        now.set(1000);
+        assertNotSame(first, cache.unmarshal("u1,xnoodles"));
+        assertEquals(1, cache.evictionCount());
+        assertEquals(2, macGenerator.calls);
+    }
+
+    @Test public void stops_serving_ticket_once_its_expiry_has_passed() throws Exception {
+        AtomicLong clock = new AtomicLong(1600000000123L);
+        TicketFactory expiringFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4)).withExpiry('e', Duration.ofMinutes(5), clock::get);
+        Ticket ticket = new Ticket();
+        ticket.add('u', "1");
+        String marshalled = expiringFactory.marshal(ticket);
+        TicketCache cache = new TicketCache(expiringFactory, 10);
+        Ticket first = cache.unmarshal(marshalled);
+        clock.addAndGet(299000);
+        assertSame(first, cache.unmarshal(marshalled));
+        clock.addAndGet(1000);
+        try {
+            cache.unmarshal(marshalled);
+            fail("Expected TicketExpiredException");
+        } catch (TicketExpiredException e) {
+            // expected
+        }
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test public void does_not_cache_invalid_tickets() throws Exception {
+        TicketCache cache = new TicketCache(ticketFactory, 10);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.unmarshal("u1,xblahblah");
+                fail("expected MAC mismatch");
+            } catch (TicketMacMismatchException e) {
+                // expected
+            }
+        }
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.missCount());
+        assertEquals(2, macGenerator.calls);
+    }
+
+    @Test public void returns_immutable_tickets() throws Exception {
+        TicketCache cache = new TicketCache(ticketFactory, 10);
+        for (int i = 0; i < 2; i++) {
+            Ticket ticket = cache.unmarshal("u1,r2,xnoodles");
+            try {
+                ticket.add('u', "2");
+                fail("expected cached ticket to be immutable");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+            try {
+                ticket.set('r', "3");
+                fail("expected cached ticket to be immutable");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+            try {
+                ticket.get('r').set(0, "3");
+                fail("expected cached ticket to be immutable");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test public void cached_tickets_can_be_marshalled() throws Exception {
+        TicketCache cache = new TicketCache(ticketFactory, 10);
+        Ticket ticket = cache.unmarshal("u1,r2,r+2c,xnoodles");
+        assertThat(ticketFactory.marshal(ticket), is("u1,r2,r+2c,xnoodles"));
+    }
+
+    @Test public void invalidating_drops_all_tickets() throws Exception {
+        TicketCache cache = new TicketCache(ticketFactory, 100);
+        for (int i = 0; i < 50; i++) {
+            cache.unmarshal("u" + i + ",xnoodles");
+        }
+        assertEquals(50, cache.size());
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void stops_serving_tickets_signed_with_retired_key() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", HashMacGenerator.sha1("secret", 0, 4));
+        TicketFactory keyRingFactory = new TicketFactory(keyRing);
+        TicketCache cache = new TicketCache(keyRingFactory, 10);
+        Ticket ticket = new Ticket();
+        ticket.add('u', "1");
+        String oldTicket = keyRingFactory.marshal(ticket);
+        keyRing.addKey("k2", HashMacGenerator.sha1("new secret", 0, 4));
+        keyRing.useForSigning("k2");
+        String newTicket = keyRingFactory.marshal(ticket);
+        cache.unmarshal(oldTicket);
+        cache.unmarshal(newTicket);
+        keyRing.retireKey("k1");
+        try {
+            cache.unmarshal(oldTicket);
+            fail("Expected InvalidTicketException");
+        } catch (InvalidTicketException e) {
+            // expected
+        }
+        cache.unmarshal(newTicket);
+        Ticket cached = cache.unmarshal(newTicket);
+        assertEquals(Arrays.asList("1"), cached.get('u'));
+        assertEquals(1, cache.hitCount());
+    }
+
+    private static final class CountingMacGenerator implements TicketMacGenerator {
+        int calls;
+
+        @Override public String generateMAC(String input) {
+            calls++;
+            return "noodles";
+        }
+    }
+}
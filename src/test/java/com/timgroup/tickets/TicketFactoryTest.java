@@ -3,17 +3,26 @@ package com.timgroup.tickets;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
@@ -68,6 +77,32 @@ public class TicketFactoryTest {
         assertEquals("ab!21c.xnoodles", ticketFactory.marshal(ticket));
     }
 
+    @Test public void escapes_specified_other_characters() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR, ',', '=', '+', ";:".toCharArray());
+        Ticket ticket = new Ticket();
+        ticket.add('a', "b;c:d");
+        assertEquals("ab+3bc+3ad,xnoodles", ticketFactory.marshal(ticket));
+    }
+
+    @Test public void escapes_every_character_as_formatted_hex() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR, '.', '!', '~', "{}".toCharArray());
+        StringBuilder value = new StringBuilder();
+        StringBuilder expected = new StringBuilder("a");
+        for (char c = 0; c < 0xffff; c++) {
+            value.append(c);
+            if (c >= 256) {
+                expected.append(String.format("%c%04x", '!', (int) c));
+            } else if (c <= 32 || c >= 127 || c == '.' || c == '!' || c == '~' || c == '{' || c == '}') {
+                expected.append(String.format("%c%02x", '~', (int) c));
+            } else {
+                expected.append(c);
+            }
+        }
+        Ticket ticket = new Ticket();
+        ticket.add('a', value.toString());
+        assertEquals(expected.append(".xnoodles").toString(), ticketFactory.marshal(ticket));
+    }
+
     @Test public void marshals_single_attribute_with_value() throws Exception {
         TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
         Ticket ticket = new Ticket();
@@ -154,6 +189,16 @@ public class TicketFactoryTest {
         assertThat(ticketFactory.unmarshal(",xnoodles"), is(emptyTicket()));
     }
 
+    @Test public void unmarshalling_ignores_repeated_and_trailing_separators() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        assertThat(ticketFactory.unmarshal(",,a1,,b2,xnoodles,,"), is(ticket().containing('a', "1").containing('b', "2")));
+    }
+
+    @Test public void unmarshalling_ignores_mac_parts_before_trailer() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        assertThat(ticketFactory.unmarshal("a1,xother,xnoodles"), is(ticket().containing('a', "1")));
+    }
+
     @Test public void unescapes_ascii_characters_when_unmarshalling() throws Exception {
         TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
         assertThat(ticketFactory.unmarshal("a1+2c2,xnoodles"), is(ticket().containing('a', "1,2")));
@@ -169,11 +214,41 @@ public class TicketFactoryTest {
         assertThat(ticketFactory.unmarshal("a=20AC,xnoodles"), is(ticket().containing('a', "\u20ac")));
     }
 
+    @Test public void unescapes_using_specified_escapes() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR, '.', '!', '~', "".toCharArray());
+        assertThat(ticketFactory.unmarshal("a1~2e2!20ac=+.xnoodles"), is(ticket().containing('a', "1.2\u20ac=+")));
+        assertThat(ticketFactory.unmarshalLazily("a1~2e2!20ac=+.xnoodles"), is(ticket().containing('a', "1.2\u20ac=+")));
+    }
+
+    @Test public void round_trips_values_with_specified_escapes() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR, '.', '!', '~', "{}".toCharArray());
+        Ticket ticket = new Ticket();
+        ticket.add('a', "{\"a\": \"=+!~.\u00a3\u20ac\"}");
+        ticket.add('b', "plain");
+        assertThat(ticketFactory.unmarshal(ticketFactory.marshal(ticket)),
+                is(ticket().containing('a', "{\"a\": \"=+!~.\u00a3\u20ac\"}").containing('b', "plain")));
+    }
+
     @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_empty_string() throws Exception {
         TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
         ticketFactory.unmarshal("");
     }
 
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_string_of_separators() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        ticketFactory.unmarshal(",,");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_without_mac_trailer() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        ticketFactory.unmarshal("a1,b2");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_truncated_escape() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        ticketFactory.unmarshal("a=20,b1,xnoodles");
+    }
+
     @Test(expected = TicketMacMismatchException.class) public void fails_to_unmarshal_just_invalid_mac() throws Exception {
         TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
         ticketFactory.unmarshal("xblahblah");
@@ -184,6 +259,452 @@ public class TicketFactoryTest {
         ticketFactory.unmarshal("a1,xblahblah");
     }
 
+    @Test public void unmarshals_lazily_to_same_data() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        assertThat(ticketFactory.unmarshalLazily("a1,b=20ac,,a+2c2,xnoodles"),
+                is(ticket().containing('a', "1", ",2").containing('b', "\u20ac").inOrder()));
+    }
+
+    @Test public void unmarshals_lazily_keeping_key_order_when_values_read_out_of_order() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        Ticket ticket = ticketFactory.unmarshalLazily("u1,r2,xnoodles");
+        assertEquals("2", ticket.getOne('r').get());
+        ticket.add('t', "3");
+        ticket.add('u', "4");
+        assertThat(ticket, is(ticket().containing('u', "1", "4").containing('r', "2").containing('t', "3").inOrder()));
+    }
+
+    @Test public void lazily_unmarshalled_ticket_can_replace_values_before_reading_them() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        Ticket ticket = ticketFactory.unmarshalLazily("u1,r2,xnoodles");
+        ticket.set('u', "5");
+        assertEquals("u5,r2,xnoodles", ticketFactory.marshal(ticket));
+    }
+
+    @Test public void lazily_unmarshalled_ticket_marshals_back_to_same_string() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        assertEquals("u1,r+2c2,r=20ac,xnoodles", ticketFactory.marshal(ticketFactory.unmarshalLazily("u1,r+2c2,r=20ac,xnoodles")));
+    }
+
+    @Test(expected = TicketMacMismatchException.class) public void fails_to_unmarshal_lazily_with_invalid_mac() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        ticketFactory.unmarshalLazily("a1,xblahblah");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_lazily_with_truncated_escape() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        ticketFactory.unmarshalLazily("a1,b+2,xnoodles");
+    }
+
+    @Test public void unmarshals_ticket_with_hash_mac() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+        Ticket ticket = new Ticket();
+        ticket.add('u', "1344808e-5029-489b-9f44-c95923e81da0");
+        assertThat(ticketFactory.unmarshal(ticketFactory.marshal(ticket)), is(ticket().containing('u', "1344808e-5029-489b-9f44-c95923e81da0")));
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_ticket_with_uppercase_hash_mac() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+        Ticket ticket = new Ticket();
+        ticket.add('u', "1344808e-5029-489b-9f44-c95923e81da0");
+        String marshalled = ticketFactory.marshal(ticket);
+        int macStart = marshalled.lastIndexOf(",x") + 2;
+        ticketFactory.unmarshal(marshalled.substring(0, macStart) + marshalled.substring(macStart).toUpperCase());
+    }
+
+    @Test public void unmarshals_ticket_from_ascii_bytes() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+        Ticket ticket = new Ticket();
+        ticket.add('u', "1344808e-5029-489b-9f44-c95923e81da0");
+        ticket.add('r', "a,b \u00a3\u20ac");
+        byte[] bytes = ("ticket: " + ticketFactory.marshal(ticket) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        assertThat(ticketFactory.unmarshal(bytes, 8, bytes.length - 10),
+                is(ticket().containing('u', "1344808e-5029-489b-9f44-c95923e81da0").containing('r', "a,b \u00a3\u20ac").inOrder()));
+    }
+
+    @Test public void unmarshals_ticket_from_byte_buffers() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        byte[] bytes = ("::" + ticketFactory.marshal(ticket)).getBytes(StandardCharsets.US_ASCII);
+
+        ByteBuffer heap = ByteBuffer.wrap(bytes);
+        heap.position(2);
+        assertThat(ticketFactory.unmarshal(heap), is(ticket().containing('u', "alice")));
+        assertEquals(0, heap.remaining());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip().position(2);
+        assertThat(ticketFactory.unmarshal(direct), is(ticket().containing('u', "alice")));
+        assertEquals(0, direct.remaining());
+    }
+
+    @Test public void unmarshals_ticket_with_non_ascii_key_from_direct_byte_buffer() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+        Ticket ticket = new Ticket();
+        ticket.add('\u00e9', "caf\u00e9");
+        byte[] bytes = ticketFactory.marshal(ticket).getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        assertThat(ticketFactory.unmarshal(direct), is(ticket().containing('\u00e9', "caf\u00e9")));
+        assertEquals(0, direct.remaining());
+    }
+
+    @Test public void unmarshals_ticket_with_non_ascii_key_from_bytes() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+        Ticket ticket = new Ticket();
+        ticket.add('\u00e9', "caf\u00e9");
+        byte[] bytes = ticketFactory.marshal(ticket).getBytes(StandardCharsets.UTF_8);
+        assertThat(ticketFactory.unmarshal(bytes, 0, bytes.length), is(ticket().containing('\u00e9', "caf\u00e9")));
+    }
+
+    @Test(expected = TicketMacMismatchException.class) public void fails_to_unmarshal_bytes_with_invalid_mac() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        byte[] bytes = ticketFactory.marshal(ticket).getBytes(StandardCharsets.US_ASCII);
+        bytes[1] = 'A';
+        ticketFactory.unmarshal(bytes, 0, bytes.length);
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_bytes_without_mac_trailer() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        byte[] bytes = "a1,b2".getBytes(StandardCharsets.US_ASCII);
+        ticketFactory.unmarshal(bytes, 0, bytes.length);
+    }
+
+    @Test public void marshals_expiry_as_first_field() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withExpiry('e', Duration.ofMinutes(5), () -> 1600000000123L);
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        assertEquals("e5f5e112c,a1,xnoodles", ticketFactory.marshal(ticket));
+        assertEquals("e5f5e112c,xnoodles", ticketFactory.marshal(new Ticket()));
+    }
+
+    @Test public void writes_expiry_as_first_field() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withExpiry('e', Duration.ofMinutes(5), () -> 1600000000123L);
+        StringBuilder output = new StringBuilder();
+        ticketFactory.newWriter(output).add('a', "1").finish();
+        assertEquals("e5f5e112c,a1,xnoodles", output.toString());
+    }
+
+    @Test public void unmarshals_unexpired_ticket_without_expiry_field() throws Exception {
+        AtomicLong clock = new AtomicLong(1600000000123L);
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4)).withExpiry('e', Duration.ofMinutes(5), clock::get);
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        String marshalled = ticketFactory.marshal(ticket);
+        clock.addAndGet(299000);
+        assertThat(ticketFactory.unmarshal(marshalled), is(ticket().containing('a', "1")));
+        assertThat(ticketFactory.unmarshalLazily(marshalled), is(ticket().containing('a', "1")));
+    }
+
+    @Test(expected = TicketExpiredException.class) public void fails_to_unmarshal_expired_ticket() throws Exception {
+        AtomicLong clock = new AtomicLong(1600000000123L);
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4)).withExpiry('e', Duration.ofMinutes(5), clock::get);
+        String marshalled = ticketFactory.marshal(new Ticket());
+        clock.addAndGet(300000);
+        ticketFactory.unmarshal(marshalled);
+    }
+
+    @Test(expected = TicketExpiredException.class) public void fails_to_unmarshal_ticket_issued_in_the_future() throws Exception {
+        AtomicLong clock = new AtomicLong(1600000000123L);
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4)).withExpiry('e', Duration.ofMinutes(5), clock::get);
+        String marshalled = ticketFactory.marshal(new Ticket());
+        clock.addAndGet(-6000);
+        ticketFactory.unmarshal(marshalled);
+    }
+
+    @Test public void unmarshals_ticket_issued_by_server_with_clock_slightly_ahead() throws Exception {
+        AtomicLong clock = new AtomicLong(1600000000000L);
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4)).withExpiry('e', Duration.ofMinutes(5), clock::get);
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        String marshalled = ticketFactory.marshal(ticket);
+        clock.addAndGet(-1);
+        assertThat(ticketFactory.unmarshal(marshalled), is(ticket().containing('a', "1")));
+        clock.addAndGet(-4000);
+        assertThat(ticketFactory.unmarshal(marshalled), is(ticket().containing('a', "1")));
+    }
+
+    @Test public void rejects_expired_ticket_before_checking_mac() throws Exception {
+        RecordingMacGenerator macGenerator = new RecordingMacGenerator();
+        TicketFactory ticketFactory = new TicketFactory(macGenerator).withExpiry('e', Duration.ofMinutes(5), () -> 1600000000123L);
+        try {
+            ticketFactory.unmarshal("e5f5e0000,a1,xzzzz");
+            fail("Expected TicketExpiredException");
+        } catch (TicketExpiredException e) {
+            assertTrue(macGenerator.inputs.isEmpty());
+        }
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_expiry_in_uppercase_hex() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withExpiry('e', Duration.ofMinutes(5), () -> 1600000000123L);
+        ticketFactory.unmarshal("e5F5E112C,a1,xnoodles");
+    }
+
+    @Test(expected = TicketMacMismatchException.class) public void expiry_is_covered_by_mac() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4)).withExpiry('e', Duration.ofMinutes(5), () -> 1600000000123L);
+        String marshalled = ticketFactory.marshal(new Ticket());
+        ticketFactory.unmarshal(marshalled.replace("e5f5e112c", "e5f5e112b"));
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_ticket_without_expiry() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withExpiry('e', Duration.ofMinutes(5), () -> 1600000000123L);
+        ticketFactory.unmarshal("a1,xnoodles");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_ticket_with_malformed_expiry() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withExpiry('e', Duration.ofMinutes(5), () -> 1600000000123L);
+        ticketFactory.unmarshal("e5f5e112g,a1,xnoodles");
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void cannot_marshal_values_for_expiry_key() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withExpiry('e', Duration.ofMinutes(5));
+        Ticket ticket = new Ticket();
+        ticket.add('e', "1");
+        ticketFactory.marshal(ticket);
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_invalid_hex_escape() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        ticketFactory.unmarshal("a1+zz,xnoodles");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_signed_hex_escape() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        ticketFactory.unmarshal("a1=-fff,xnoodles");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_lazily_with_invalid_hex_escape() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        ticketFactory.unmarshalLazily("a1+zz,xnoodles");
+    }
+
+    @Test public void unmarshals_ticket_within_limits() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withLimits(20, 2, 3);
+        assertThat(ticketFactory.unmarshal("a123,b1,,xnoodles"), is(ticket().containing('a', "123").containing('b', "1")));
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_ticket_over_length_limit() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withLimits(16, 2, 3);
+        ticketFactory.unmarshal("a123,b1,,xnoodles");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_bytes_over_length_limit() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withLimits(16, 2, 3);
+        byte[] bytes = "a123,b1,,xnoodles".getBytes(StandardCharsets.US_ASCII);
+        ticketFactory.unmarshal(bytes, 0, bytes.length);
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_ticket_over_field_count_limit() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withLimits(20, 1, 3);
+        ticketFactory.unmarshal("a123,b1,,xnoodles");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_ticket_over_value_length_limit() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withLimits(20, 2, 2);
+        ticketFactory.unmarshal("a123,b1,,xnoodles");
+    }
+
+    @Test public void rejects_malformed_mac_before_calculating_it() throws Exception {
+        RecordingMacGenerator macGenerator = new RecordingMacGenerator() {
+            @Override public boolean isWellFormedMAC(CharSequence mac, int start, int end) {
+                return false;
+            }
+        };
+        TicketFactory ticketFactory = new TicketFactory(macGenerator);
+        try {
+            ticketFactory.unmarshal("a1,xzzzz");
+            fail("Expected InvalidTicketException");
+        } catch (InvalidTicketException e) {
+            assertFalse(e instanceof TicketMacMismatchException);
+            assertTrue(macGenerator.inputs.isEmpty());
+        }
+    }
+
+    @Test public void remarshals_unchanged_ticket_to_original_string_without_mac() throws Exception {
+        final AtomicInteger macCalls = new AtomicInteger();
+        TicketFactory ticketFactory = new TicketFactory(new TicketMacGenerator() {
+            @Override public String generateMAC(String input) {
+                macCalls.incrementAndGet();
+                return "zzzz";
+            }
+        });
+        String input = "a1,a2,b1,xzzzz";
+        Ticket ticket = ticketFactory.unmarshal(input);
+        Ticket lazyTicket = ticketFactory.unmarshalLazily(input);
+        lazyTicket.get('b');
+        macCalls.set(0);
+        assertSame(input, ticketFactory.marshal(ticket));
+        assertSame(input, ticketFactory.marshal(lazyTicket));
+        assertSame(input, ticketFactory.withListener(new TicketMetrics()).marshal(ticket));
+        assertEquals(0, macCalls.get());
+    }
+
+    @Test public void remarshals_changed_ticket_reusing_encoded_fields_of_untouched_keys() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        Ticket ticket = ticketFactory.unmarshal("a1+2c,b1,a2,xnoodles");
+        ticket.set('b', "2,3");
+        assertEquals("a1+2c,a2,b2+2c3,xnoodles", ticketFactory.marshal(ticket));
+        ticket.add('c', "new");
+        assertEquals("a1+2c,a2,b2+2c3,cnew,xnoodles", ticketFactory.marshal(ticket));
+        ticket.add('a', "3");
+        assertEquals("a1+2c,a2,a3,b2+2c3,cnew,xnoodles", ticketFactory.marshal(ticket));
+    }
+
+    @Test public void remarshals_ticket_with_removed_key_reusing_encoded_fields_of_others() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        Ticket ticket = ticketFactory.unmarshal("a1,b1,c1+2c,xnoodles");
+        ticket.remove('a');
+        assertEquals("b1,c1+2c,xnoodles", ticketFactory.marshal(ticket));
+        ticket.keySet().remove('b');
+        ticket.add('d', "1");
+        assertEquals("c1+2c,d1,xnoodles", ticketFactory.marshal(ticket));
+    }
+
+    @Test public void remarshals_lazily_unmarshalled_ticket_reusing_encoded_fields() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        Ticket ticket = ticketFactory.unmarshalLazily("a1+2c,b1,xnoodles");
+        ticket.set('b', "2");
+        assertEquals("a1+2c,b2,xnoodles", ticketFactory.marshal(ticket));
+    }
+
+    @Test public void remarshals_fields_not_encoded_as_this_factory_would_in_its_own_encoding() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        Ticket ticket = ticketFactory.unmarshal("a1+2C,b=263A,c=0041,d+41,e=263a,xnoodles");
+        ticket.add('f', "1");
+        assertEquals("a1+2c,b=263a,cA,dA,e=263a,f1,xnoodles", ticketFactory.marshal(ticket));
+        Ticket lazyTicket = ticketFactory.unmarshalLazily("a1+2C,b1,xnoodles");
+        lazyTicket.set('b', "2");
+        assertEquals("a1+2c,b2,xnoodles", ticketFactory.marshal(lazyTicket));
+    }
+
+    @Test public void remarshals_unchanged_ticket_not_encoded_as_this_factory_would_in_its_own_encoding() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        assertEquals("a1+2c,xnoodles", ticketFactory.marshal(ticketFactory.unmarshal("a1+2C,xnoodles")));
+        assertEquals("a1,b1,xnoodles", ticketFactory.marshal(ticketFactory.unmarshal("a1,,b1,xnoodles")));
+        assertEquals("a1,b1,xnoodles", ticketFactory.marshal(ticketFactory.unmarshal("a1,b1,xnoodles,")));
+        assertEquals("a1,a2,b1,xnoodles", ticketFactory.marshal(ticketFactory.unmarshal("a1,b1,a2,xnoodles")));
+    }
+
+    @Test public void remarshals_values_long_enough_to_compress_in_its_own_encoding() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withCompression(10, 100000);
+        Ticket ticket = ticketFactory.unmarshal("a1344808e-5029-489b-9f44-c95923e81da0,b1,xnoodles");
+        ticket.set('b', "2");
+        assertEquals("a1344808e-5029-489b-9f44-c95923e81da0,b2,xnoodles", ticketFactory.marshal(ticket));
+        String value = new String(new char[200]).replace('\0', 'a');
+        Ticket expected = new Ticket();
+        expected.add('a', value);
+        assertEquals(ticketFactory.marshal(expected), ticketFactory.marshal(ticketFactory.unmarshal("a" + value + ",xnoodles")));
+    }
+
+    @Test public void reencodes_ticket_from_factory_with_other_escapes() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+        TicketFactory otherFactory = new TicketFactory(DUMMY_MAC_GENERATOR, ',', '!', '~', null);
+        Ticket ticket = ticketFactory.unmarshal("a1+2c,xnoodles");
+        assertEquals("a1~2c,xnoodles", otherFactory.marshal(ticket));
+    }
+
+    @Test public void remarshals_unchanged_ticket_with_new_expiry() throws Exception {
+        AtomicLong clock = new AtomicLong(1600000000123L);
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withExpiry('e', Duration.ofMinutes(5), clock::get);
+        Ticket ticket = ticketFactory.unmarshal("e5f5e112c,a1+2c,xnoodles");
+        clock.addAndGet(60000);
+        assertEquals("e5f5e1168,a1+2c,xnoodles", ticketFactory.marshal(ticket));
+    }
+
+    @Test public void shares_repeated_values_through_dictionary() throws Exception {
+        TicketValueDictionary dictionary = new TicketValueDictionary(64, 16);
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withValueDictionary(dictionary);
+        ticketFactory.unmarshal("u0,radmin,r=00e9t=00e9,xnoodles");
+        ticketFactory.unmarshal("u1,radmin,r=00e9t=00e9,xnoodles");
+        Ticket first = ticketFactory.unmarshal("u2,radmin,r=00e9t=00e9,xnoodles");
+        Ticket second = ticketFactory.unmarshal("u3,radmin,r=00e9t=00e9,xnoodles".getBytes(StandardCharsets.US_ASCII), 0, 31);
+        assertThat(first, is(ticket().containing('u', "2").containing('r', "admin", "\u00e9t\u00e9")));
+        assertSame(first.get('r').get(0), second.get('r').get(0));
+        assertSame(first.get('r').get(1), second.get('r').get(1));
+        assertEquals(4, dictionary.hitCount());
+    }
+
+    @Test public void compresses_large_values() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4)).withCompression(100, 100000);
+        String json = json(40);
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        ticket.add('j', json);
+        String marshalled = ticketFactory.marshal(ticket);
+        assertTrue(marshalled, marshalled.startsWith("ualice,j+z"));
+        assertTrue(marshalled.length() < json.length() / 2);
+        assertThat(ticketFactory.unmarshal(marshalled), is(ticket().containing('u', "alice").containing('j', json)));
+        assertThat(ticketFactory.unmarshalLazily(marshalled), is(ticket().containing('u', "alice").containing('j', json)));
+        StringBuilder written = new StringBuilder();
+        ticketFactory.newWriter(written).add('u', "alice").add('j', json).finish();
+        assertEquals(marshalled, written.toString());
+    }
+
+    @Test public void leaves_small_or_incompressible_values_uncompressed() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withCompression(10, 100000);
+        Ticket ticket = new Ticket();
+        ticket.add('a', "short");
+        ticket.add('b', "1344808e-5029-489b-9f44-c95923e81da0");
+        assertEquals("ashort,b1344808e-5029-489b-9f44-c95923e81da0,xnoodles", ticketFactory.marshal(ticket));
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_value_inflating_beyond_limit() throws Exception {
+        TicketMacGenerator macGenerator = HashMacGenerator.sha1("secret", 0, 4);
+        Ticket ticket = new Ticket();
+        ticket.add('j', new String(new char[100000]).replace('\0', 'a'));
+        String marshalled = new TicketFactory(macGenerator).withCompression(100, 200000).marshal(ticket);
+        assertTrue(marshalled.length() < 1000);
+        new TicketFactory(macGenerator).withCompression(100, 99999).unmarshal(marshalled);
+    }
+
+    @Test public void does_not_compress_values_too_large_to_inflate() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4)).withCompression(32, 1000);
+        String json = json(100);
+        assertTrue(json.length() > 1000);
+        Ticket ticket = new Ticket();
+        ticket.add('j', json);
+        String marshalled = ticketFactory.marshal(ticket);
+        assertTrue(marshalled, marshalled.startsWith("j{"));
+        assertThat(ticketFactory.unmarshal(marshalled), is(ticket().containing('j', json)));
+    }
+
+    @Test(expected = InvalidTicketException.class) public void lazily_fails_to_unmarshal_value_inflating_beyond_limit() throws Exception {
+        TicketMacGenerator macGenerator = HashMacGenerator.sha1("secret", 0, 4);
+        Ticket ticket = new Ticket();
+        ticket.add('j', json(100));
+        String marshalled = new TicketFactory(macGenerator).withCompression(32, 100000).marshal(ticket);
+        new TicketFactory(macGenerator).withCompression(32, 1000).unmarshalLazily(marshalled);
+    }
+
+    @Test(expected = InvalidTicketException.class) public void lazily_fails_to_unmarshal_truncated_compressed_value() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withCompression(32, 100000);
+        ticketFactory.unmarshalLazily("j+zAAAAA,xnoodles");
+    }
+
+    @Test(expected = TicketMacMismatchException.class) public void checks_mac_before_inflating() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4)).withCompression(100, 100000);
+        Ticket ticket = new Ticket();
+        ticket.add('j', json(40));
+        String marshalled = ticketFactory.marshal(ticket);
+        ticketFactory.unmarshal(marshalled.substring(0, 3) + "AAAA" + marshalled.substring(7));
+    }
+
+    @Test(expected = InvalidTicketException.class) public void fails_to_unmarshal_compressed_value_without_compression() throws Exception {
+        TicketMacGenerator macGenerator = HashMacGenerator.sha1("secret", 0, 4);
+        Ticket ticket = new Ticket();
+        ticket.add('j', json(40));
+        String marshalled = new TicketFactory(macGenerator).withCompression(100, 100000).marshal(ticket);
+        new TicketFactory(macGenerator).unmarshal(marshalled);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void refuses_compression_when_base64_digits_are_reserved() throws Exception {
+        new TicketFactory(DUMMY_MAC_GENERATOR, '-', '=', '+', null).withCompression(100, 100000);
+    }
+
     @Test public void marshalling_passes_empty_payload_to_mac_generator() throws Exception {
         TicketMacGenerator macGenerator = mock(TicketMacGenerator.class);
         when(macGenerator.generateMAC(anyString())).thenReturn("zzzz");
@@ -222,6 +743,47 @@ public class TicketFactoryTest {
         verifyNoMoreInteractions(macGenerator);
     }
 
+    @Test public void unmarshalling_passes_payload_without_empty_leading_parts_to_mac_generator() throws Exception {
+        RecordingMacGenerator macGenerator = new RecordingMacGenerator();
+        TicketFactory ticketFactory = new TicketFactory(macGenerator);
+        ticketFactory.unmarshal(",,xzzzz");
+        assertEquals(Arrays.asList(""), macGenerator.inputs);
+    }
+
+    @Test public void unmarshalling_bytes_passes_payload_bytes_to_mac_generator() throws Exception {
+        final List<String> payloads = new ArrayList<String>();
+        TicketMacGenerator macGenerator = new RecordingMacGenerator() {
+            @Override public boolean verifyMAC(byte[] input, int offset, int length, CharSequence mac, int macStart, int macEnd) {
+                payloads.add(new String(input, offset, length, StandardCharsets.US_ASCII));
+                return super.verifyMAC(input, offset, length, mac, macStart, macEnd);
+            }
+        };
+        TicketFactory ticketFactory = new TicketFactory(macGenerator);
+        byte[] bytes = "...a1,xzzzz".getBytes(StandardCharsets.US_ASCII);
+        assertThat(ticketFactory.unmarshal(bytes, 3, bytes.length - 3), is(ticket().containing('a', "1")));
+        assertEquals(Arrays.asList("a1"), payloads);
+    }
+
+    private static class RecordingMacGenerator implements ExtendedMacGenerator {
+        final List<String> inputs = new ArrayList<String>();
+
+        @Override public String generateMAC(String input) {
+            inputs.add(input);
+            return "zzzz";
+        }
+    }
+
+    private static String json(int entries) {
+        StringBuilder builder = new StringBuilder("{\"preferences\": [");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append("{\"id\": ").append(i).append(", \"name\": \"preference ").append(i).append("\", \"enabled\": true}");
+        }
+        return builder.append("]}").toString();
+    }
+
     private static Matcher<Ticket> emptyTicket() {
         return new TypeSafeDiagnosingMatcher<Ticket>(Ticket.class) {
             @Override protected boolean matchesSafely(Ticket item, Description mismatchDescription) {
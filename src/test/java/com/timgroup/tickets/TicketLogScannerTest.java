@@ -0,0 +1,150 @@
+package com.timgroup.tickets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TicketLogScannerTest {
+    private final TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+
+    @Test public void finds_tickets_in_log_lines() throws Exception {
+        String ticket = ticketFactory.marshal(ticket('u', "1234"));
+        String log = "GET /home 200 Cookie: session=" + ticket + "; theme=dark\n"
+                + "GET /other 403 token='u1234,xdeadbeef'\n"
+                + "GET /broken 400 ?t=u,x12345678&q=1 " + ticket + "\n"
+                + "no tickets here, x marks the spot\n";
+        Path file = write(log);
+        try {
+            final List<String> found = Collections.synchronizedList(new ArrayList<String>());
+            TicketLogScanner.Summary summary = new TicketLogScanner(ticketFactory).scan(file, new TicketLogScanner.Sink() {
+                @Override public void valid(long position, Ticket ticket) {
+                    found.add(position + " " + ticket.get('u'));
+                }
+
+                @Override public void rejected(long position, String token, InvalidTicketException reason) {
+                    found.add(position + " " + token);
+                }
+            });
+            assertEquals(found.toString(), 4, found.size());
+            assertTrue(found.contains(log.indexOf(ticket) + " [1234]"));
+            assertTrue(found.contains(log.lastIndexOf(ticket) + " [1234]"));
+            assertTrue(found.contains(log.indexOf("u1234,xdeadbeef") + " u1234,xdeadbeef"));
+            assertTrue(found.contains(log.indexOf("u,x12345678") + " u,x12345678"));
+            assertEquals(2, summary.validCount());
+            assertEquals(2, summary.mismatchedCount());
+            assertEquals(0, summary.malformedCount());
+            assertEquals(Collections.singletonMap('u', 2L), summary.keyCounts());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void finds_tickets_with_escaped_values() throws Exception {
+        String ticket = ticketFactory.marshal(ticket('n', "\u4e2d\u6587"));
+        assertTrue(ticket, ticket.startsWith("n=4e2d=6587,x"));
+        String forged = "n=4e2d=6587,xdeadbeef";
+        String log = "GET / " + ticket + " Cookie: session=" + ticket + "; other=" + forged + "\n";
+        Path file = write(log);
+        try {
+            final List<String> found = Collections.synchronizedList(new ArrayList<String>());
+            TicketLogScanner.Summary summary = new TicketLogScanner(ticketFactory).scan(file, new TicketLogScanner.Sink() {
+                @Override public void valid(long position, Ticket ticket) {
+                    found.add(position + " " + ticket.get('n'));
+                }
+
+                @Override public void rejected(long position, String token, InvalidTicketException reason) {
+                    found.add(position + " " + token);
+                }
+            });
+            assertEquals(found.toString(), 3, found.size());
+            assertTrue(found.contains(log.indexOf(ticket) + " [\u4e2d\u6587]"));
+            assertTrue(found.contains(log.lastIndexOf(ticket) + " [\u4e2d\u6587]"));
+            assertTrue(found.contains(log.indexOf(forged) + " " + forged));
+            assertEquals(2, summary.validCount());
+            assertEquals(1, summary.mismatchedCount());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void counts_tickets_across_segments() throws Exception {
+        List<String> tickets = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            tickets.add(ticketFactory.marshal(ticket('n', Integer.toString(i))));
+        }
+        Path file = Files.createTempFile("tickets", ".log");
+        int lines = 100000;
+        try {
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+                for (int i = 0; i < lines; i++) {
+                    writer.write("2020-05-01T12:00:00Z request " + i + " cookie " + tickets.get(i % 100) + " done\n");
+                }
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                final AtomicLong sum = new AtomicLong();
+                TicketLogScanner.Summary summary = new TicketLogScanner(ticketFactory, executor, 4).scan(file, new TicketLogScanner.Sink() {
+                    @Override public void valid(long position, Ticket ticket) {
+                        sum.addAndGet(Long.parseLong(ticket.get('n').get(0)));
+                    }
+                });
+                assertTrue(Files.size(file) > 4 << 20);
+                assertEquals(lines, summary.validCount());
+                assertEquals(lines / 100 * 4950, sum.get());
+                assertEquals(0, summary.mismatchedCount() + summary.malformedCount());
+            } finally {
+                executor.shutdown();
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void counts_expired_tickets() throws Exception {
+        TicketFactory expiring = ticketFactory.withExpiry('e', java.time.Duration.ofMinutes(5), () -> 0L);
+        String ticket = expiring.marshal(ticket('u', "1"));
+        Path file = write(ticket + "\n");
+        try {
+            TicketLogScanner scanner = new TicketLogScanner(ticketFactory.withExpiry('e', java.time.Duration.ofMinutes(5), () -> 600000L));
+            TicketLogScanner.Summary summary = scanner.scan(file, TicketLogScanner.Sink.NONE);
+            assertEquals(0, summary.validCount());
+            assertEquals(1, summary.expiredCount());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void scans_empty_file() throws Exception {
+        Path file = write("");
+        try {
+            assertEquals(0, new TicketLogScanner(ticketFactory).scan(file, TicketLogScanner.Sink.NONE).validCount());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static Ticket ticket(char key, String value) {
+        Ticket ticket = new Ticket();
+        ticket.add(key, value);
+        return ticket;
+    }
+
+    private static Path write(String content) throws IOException {
+        Path file = Files.createTempFile("tickets", ".log");
+        Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+}
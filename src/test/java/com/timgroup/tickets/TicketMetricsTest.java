@@ -0,0 +1,176 @@
+package com.timgroup.tickets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class TicketMetricsTest {
+    private static final TicketMacGenerator DUMMY_MAC_GENERATOR = new TicketMacGenerator() {
+        @Override public String generateMAC(String input) {
+            return "noodles";
+        }
+    };
+
+    @Test public void counts_outcomes_of_unmarshalling() throws Exception {
+        TicketMetrics metrics = new TicketMetrics();
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withListener(metrics);
+        ticketFactory.unmarshal("a1,xnoodles");
+        ticketFactory.unmarshalLazily("a1,xnoodles");
+        unmarshalIgnoringFailure(ticketFactory, "a1,xblahblah");
+        unmarshalIgnoringFailure(ticketFactory, "a1");
+        unmarshalIgnoringFailure(ticketFactory, "");
+        assertEquals(2, metrics.unmarshalledCount());
+        assertEquals(1, metrics.macMismatchCount());
+        assertEquals(2, metrics.malformedCount());
+        assertEquals(5, metrics.unmarshalLatencyNanos().count());
+        assertEquals(3, metrics.macLatencyNanos().count());
+    }
+
+    @Test public void counts_badly_shaped_mac_as_malformed() throws Exception {
+        TicketMetrics metrics = new TicketMetrics();
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4)).withListener(metrics);
+        unmarshalIgnoringFailure(ticketFactory, "u1,xZZ");
+        unmarshalIgnoringFailure(ticketFactory, "u1,x0123456789");
+        unmarshalIgnoringFailure(ticketFactory, "u1,x01234567");
+        assertEquals(2, metrics.malformedCount());
+        assertEquals(1, metrics.macMismatchCount());
+        assertEquals(1, metrics.macLatencyNanos().count());
+    }
+
+    @Test public void counts_expired_tickets_separately() throws Exception {
+        TicketMetrics metrics = new TicketMetrics();
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withExpiry('e', Duration.ofMinutes(5), () -> 0L).withListener(metrics);
+        unmarshalIgnoringFailure(ticketFactory, "e0,a1,xnoodles");
+        assertEquals(1, metrics.expiredCount());
+        assertEquals(0, metrics.malformedCount());
+        assertEquals(0, metrics.macLatencyNanos().count());
+    }
+
+    @Test public void records_marshalled_ticket_lengths() throws Exception {
+        TicketMetrics metrics = new TicketMetrics();
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withListener(metrics);
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        ticketFactory.marshal(ticket);
+        assertEquals(1, metrics.marshalledCount());
+        assertEquals(1, metrics.macLatencyNanos().count());
+        assertEquals(11, metrics.ticketLengths().max());
+        assertEquals(11, metrics.ticketLengths().sum());
+    }
+
+    @Test public void records_tickets_marshalled_by_writer() throws Exception {
+        TicketMetrics metrics = new TicketMetrics();
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withListener(metrics);
+        StringBuilder target = new StringBuilder();
+        ticketFactory.newWriter(target).add('a', "1").finish();
+        assertEquals(1, metrics.marshalledCount());
+        assertEquals(target.length(), metrics.ticketLengths().sum());
+        assertEquals(1, metrics.macLatencyNanos().count());
+    }
+
+    @Test public void histogram_reports_quantiles_to_power_of_two() throws Exception {
+        TicketMetrics.Histogram histogram = new TicketMetrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        histogram.record(0);
+        assertEquals(101, histogram.count());
+        assertEquals(5050, histogram.sum());
+        assertEquals(1, histogram.bucketCount(0));
+        assertEquals(1, histogram.bucketCount(1));
+        assertEquals(2, histogram.bucketCount(2));
+        assertEquals(63, histogram.valueAtQuantile(0.5));
+        assertEquals(100, histogram.valueAtQuantile(1));
+        assertEquals(0, histogram.valueAtQuantile(0));
+    }
+
+    @Test public void composite_listener_notifies_every_listener() throws Exception {
+        TicketMetrics first = new TicketMetrics();
+        TicketMetrics second = new TicketMetrics();
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withListener(TicketListener.all(first, second));
+        ticketFactory.unmarshal("a1,xnoodles");
+        assertEquals(1, first.unmarshalledCount());
+        assertEquals(1, second.unmarshalledCount());
+    }
+
+    @Test public void emits_flight_recorder_events() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR).withListener(new JfrTicketListener());
+        File file = File.createTempFile("tickets", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable("com.timgroup.tickets.Unmarshal");
+                recording.start();
+                ticketFactory.unmarshal("a1,xnoodles");
+                unmarshalIgnoringFailure(ticketFactory, "a1,xblahblah");
+                recording.stop();
+                recording.dump(file.toPath());
+            }
+            List<String> outcomes = new ArrayList<String>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                if (event.getEventType().getName().equals("com.timgroup.tickets.Unmarshal")) {
+                    outcomes.add(event.getString("outcome"));
+                }
+            }
+            assertEquals(2, outcomes.size());
+            assertEquals("ok", outcomes.get(0));
+            assertEquals("mac mismatch", outcomes.get(1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test public void flight_recorder_events_last_as_long_as_the_work() throws Exception {
+        TicketMacGenerator slowMacGenerator = new TicketMacGenerator() {
+            @Override public String generateMAC(String input) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "noodles";
+            }
+        };
+        TicketFactory ticketFactory = new TicketFactory(slowMacGenerator).withListener(new JfrTicketListener());
+        File file = File.createTempFile("tickets", ".jfr");
+        try {
+            try (Recording recording = new Recording()) {
+                recording.enable("com.timgroup.tickets.Unmarshal");
+                recording.enable("com.timgroup.tickets.Mac");
+                recording.start();
+                ticketFactory.unmarshal("a1,xnoodles");
+                recording.stop();
+                recording.dump(file.toPath());
+            }
+            List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                if (event.getEventType().getName().startsWith("com.timgroup.tickets.")) {
+                    events.add(event);
+                }
+            }
+            assertEquals(2, events.size());
+            for (RecordedEvent event : events) {
+                assertTrue(event.getDuration().compareTo(Duration.ofMillis(15)) >= 0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void unmarshalIgnoringFailure(TicketFactory ticketFactory, String input) {
+        try {
+            ticketFactory.unmarshal(input);
+        } catch (InvalidTicketException e) {
+            // counted by the listener
+        }
+    }
+}
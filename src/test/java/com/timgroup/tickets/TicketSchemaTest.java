@@ -0,0 +1,118 @@
+package com.timgroup.tickets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class TicketSchemaTest {
+    private static final TicketMacGenerator DUMMY_MAC_GENERATOR = new TicketMacGenerator() {
+        @Override public String generateMAC(String input) {
+            return "noodles";
+        }
+    };
+
+    private static final TicketSchema<Session> SCHEMA = TicketSchema.builder(Session.class)
+            .bind('u', "userId")
+            .bind('n', "name")
+            .bind('e', "expires")
+            .bind('l', "level")
+            .bind('a', "admin")
+            .bind('r', "roles")
+            .build();
+
+    private final TicketFactory ticketFactory = new TicketFactory(DUMMY_MAC_GENERATOR);
+
+    @Test public void marshals_bound_fields() throws Exception {
+        Session session = new Session();
+        session.userId = UUID.fromString("1344808e-5029-489b-9f44-c95923e81da0");
+        session.name = "Fred, Jr.";
+        session.expires = 1600000000L;
+        session.level = Level.GOLD;
+        session.admin = true;
+        session.roles = Arrays.asList("admin", "user");
+        assertEquals("u~BNEgI5QKUibJ9EyVkj6B2g,nFred+2c+20Jr.,e~BfXhAA,lGOLD,a1,radmin,ruser,xnoodles",
+                ticketFactory.marshal(SCHEMA, session));
+    }
+
+    @Test public void unmarshals_bound_fields() throws Exception {
+        Session session = ticketFactory.unmarshal(SCHEMA,
+                "u~BNEgI5QKUibJ9EyVkj6B2g,nFred,e~BfXhAA,lGOLD,a0,radmin,ruser,xnoodles");
+        assertEquals(UUID.fromString("1344808e-5029-489b-9f44-c95923e81da0"), session.userId);
+        assertEquals("Fred", session.name);
+        assertEquals(1600000000L, session.expires);
+        assertEquals(Level.GOLD, session.level);
+        assertFalse(session.admin);
+        assertEquals(Arrays.asList("admin", "user"), session.roles);
+    }
+
+    @Test public void leaves_out_null_fields_and_keeps_defaults_for_missing_keys() throws Exception {
+        assertEquals("e~A,a0,xnoodles", ticketFactory.marshal(SCHEMA, new Session()));
+        Session session = ticketFactory.unmarshal(SCHEMA, "xnoodles");
+        assertNull(session.userId);
+        assertEquals(Collections.emptyList(), session.roles);
+    }
+
+    @Test public void binds_lists_of_typed_values() throws Exception {
+        TicketSchema<Levels> schema = TicketSchema.builder(Levels.class).bind('l', "levels").build();
+        Levels levels = new Levels();
+        levels.levels = Arrays.asList(Level.GOLD, Level.SILVER);
+        String marshalled = ticketFactory.marshal(schema, levels);
+        assertEquals("lGOLD,lSILVER,xnoodles", marshalled);
+        assertEquals(levels.levels, ticketFactory.unmarshal(schema, marshalled).levels);
+    }
+
+    @Test(expected = InvalidTicketException.class) public void rejects_value_of_wrong_type() throws Exception {
+        ticketFactory.unmarshal(SCHEMA, "enever,xnoodles");
+    }
+
+    @Test(expected = InvalidTicketException.class) public void rejects_unknown_enum_constant() throws Exception {
+        ticketFactory.unmarshal(SCHEMA, "lPLATINUM,xnoodles");
+    }
+
+    @Test public void round_trips_through_ticket() throws Exception {
+        Session session = new Session();
+        session.name = "\u20ac";
+        session.level = Level.SILVER;
+        Ticket ticket = SCHEMA.toTicket(session);
+        assertEquals(Arrays.asList("\u20ac"), ticket.get('n'));
+        Session copy = SCHEMA.fromTicket(ticket);
+        assertEquals("\u20ac", copy.name);
+        assertTrue(copy.level == Level.SILVER);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void refuses_unknown_field() throws Exception {
+        TicketSchema.builder(Session.class).bind('z', "zzz");
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void refuses_key_bound_twice() throws Exception {
+        TicketSchema.builder(Session.class).bind('u', "userId").bind('u', "name");
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void refuses_unsupported_field_type() throws Exception {
+        TicketSchema.builder(Session.class).bind('o', "other");
+    }
+
+    enum Level { SILVER, GOLD }
+
+    private static final class Session {
+        private UUID userId;
+        private String name;
+        private long expires;
+        private Level level;
+        private boolean admin;
+        private List<String> roles = Collections.emptyList();
+        private Object other;
+    }
+
+    private static final class Levels {
+        private List<Level> levels;
+    }
+}
@@ -0,0 +1,211 @@
+package com.timgroup.tickets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class TicketTest {
+    @Test public void missing_key_has_no_values() throws Exception {
+        Ticket ticket = new Ticket();
+        assertEquals(Collections.emptyList(), ticket.get('a'));
+        assertEquals(Optional.empty(), ticket.getOne('a'));
+        assertTrue(ticket.keySet().isEmpty());
+    }
+
+    @Test public void stores_longs_compactly() throws Exception {
+        Ticket ticket = new Ticket();
+        long[] values = { 0, 1, 63, 64, 1600000000L, Long.MAX_VALUE, Long.MIN_VALUE, -1 };
+        for (long value : values) {
+            ticket.addLong('n', value);
+        }
+        assertEquals(Arrays.asList("~A", "~B", "~_", "~BA", "~BfXhAA", "~H__________", "~IAAAAAAAAAA", "~P__________"), ticket.get('n'));
+        for (int i = 0; i < values.length; i++) {
+            ticket.setLong('m', values[i]);
+            assertEquals(OptionalLong.of(values[i]), ticket.getLong('m'));
+        }
+        assertEquals(OptionalLong.empty(), ticket.getLong('a'));
+    }
+
+    @Test public void stores_uuids_compactly() throws Exception {
+        Ticket ticket = new Ticket();
+        UUID uuid = UUID.fromString("1344808e-5029-489b-9f44-c95923e81da0");
+        ticket.addUuid('u', uuid);
+        assertEquals(Arrays.asList("~BNEgI5QKUibJ9EyVkj6B2g"), ticket.get('u'));
+        assertEquals(Optional.of(uuid), ticket.getUuid('u'));
+        UUID max = new UUID(-1, -1);
+        ticket.setUuid('u', max);
+        assertEquals(Optional.of(max), ticket.getUuid('u'));
+        assertEquals(Optional.empty(), ticket.getUuid('a'));
+    }
+
+    @Test public void round_trips_compact_values_through_factory() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+        Ticket ticket = new Ticket();
+        UUID uuid = UUID.randomUUID();
+        ticket.addUuid('u', uuid);
+        ticket.addLong('t', System.currentTimeMillis());
+        ticket.addLong('n', -1);
+        Ticket unmarshalled = ticketFactory.unmarshal(ticketFactory.marshal(ticket));
+        assertEquals(Optional.of(uuid), unmarshalled.getUuid('u'));
+        assertEquals(ticket.getLong('t'), unmarshalled.getLong('t'));
+        assertEquals(OptionalLong.of(-1), unmarshalled.getLong('n'));
+    }
+
+    @Test(expected = NumberFormatException.class) public void rejects_long_that_was_not_added_compactly() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('n', "1.5");
+        ticket.getLong('n');
+    }
+
+    @Test(expected = NumberFormatException.class) public void rejects_decimal_long() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('t', "1600000000");
+        ticket.getLong('t');
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void rejects_uuid_without_marker() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "BNEgI5QKUibJ9EyVkj6B2g");
+        ticket.getUuid('u');
+    }
+
+    @Test(expected = NumberFormatException.class) public void rejects_long_out_of_range() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('n', "~QAAAAAAAAAA");
+        ticket.getLong('n');
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void rejects_uuid_that_was_not_added_compactly() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "1344808e-5029-489b-9f44-c95923e81da0");
+        ticket.getUuid('u');
+    }
+
+    @Test public void keeps_keys_in_insertion_order() throws Exception {
+        Ticket ticket = new Ticket();
+        String keys = "qwertyuiop\u00e9\u20ac";
+        for (char key : keys.toCharArray()) {
+            ticket.add(key, String.valueOf(key));
+        }
+        assertEquals(chars(keys), new ArrayList<Character>(ticket.keySet()));
+        assertEquals(Arrays.asList("\u20ac"), ticket.get('\u20ac'));
+    }
+
+    @Test public void groups_values_under_their_key() throws Exception {
+        Ticket ticket = new Ticket();
+        for (int i = 0; i < 10; i++) {
+            ticket.add('a', "a" + i);
+            ticket.add('b', "b" + i);
+        }
+        assertEquals(Arrays.asList('a', 'b'), new ArrayList<Character>(ticket.keySet()));
+        assertEquals(10, ticket.get('a').size());
+        assertEquals("b9", ticket.get('b').get(9));
+        assertEquals(Optional.of("a0"), ticket.getOne('a'));
+    }
+
+    @Test public void set_replaces_values_keeping_key_position() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        ticket.add('b', "2");
+        ticket.add('a', "3");
+        ticket.set('a', "4");
+        ticket.set('c', Arrays.asList("5", "6"));
+        assertEquals(Arrays.asList('a', 'b', 'c'), new ArrayList<Character>(ticket.keySet()));
+        assertEquals(Arrays.asList("4"), ticket.get('a'));
+        assertEquals(Arrays.asList("5", "6"), ticket.get('c'));
+    }
+
+    @Test public void key_set_to_empty_list_is_present_without_values() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.set('a', Collections.<String>emptyList());
+        assertTrue(ticket.keySet().contains('a'));
+        assertEquals(Optional.empty(), ticket.getOne('a'));
+        assertEquals(Collections.emptyList(), ticket.get('a'));
+    }
+
+    @Test public void values_already_read_reflect_later_updates() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        List<String> before = ticket.get('a');
+        ticket.add('a', "2");
+        assertEquals(Arrays.asList("1", "2"), before);
+        ticket.set('a', "3");
+        assertEquals(Arrays.asList("3"), before);
+    }
+
+    @Test public void key_set_reflects_keys_added_later() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        Set<Character> keys = ticket.keySet();
+        ticket.add('b', "2");
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains('b'));
+        assertFalse(keys.contains('c'));
+    }
+
+    @Test public void removes_key_and_its_values() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        ticket.add('b', "2");
+        ticket.add('c', "3");
+        ticket.remove('b');
+        ticket.remove('z');
+        assertEquals(Arrays.asList('a', 'c'), new ArrayList<Character>(ticket.keySet()));
+        assertEquals(Collections.emptyList(), ticket.get('b'));
+        assertEquals(Arrays.asList("3"), ticket.get('c'));
+        assertTrue(ticket.keySet().remove('a'));
+        assertFalse(ticket.keySet().remove('a'));
+        assertEquals(Arrays.asList('c'), new ArrayList<Character>(ticket.keySet()));
+    }
+
+    @Test public void values_can_be_modified_through_list() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        List<String> values = ticket.get('a');
+        values.add("2");
+        values.add(0, "0");
+        assertEquals("1", values.set(1, "one"));
+        assertEquals("0", values.remove(0));
+        assertEquals(Arrays.asList("one", "2"), ticket.get('a'));
+        ticket.add('a', "3");
+        assertEquals(Arrays.asList("one", "2", "3"), values);
+    }
+
+    @Test public void values_changed_through_list_are_remarshalled() throws Exception {
+        TicketFactory ticketFactory = new TicketFactory(new TicketMacGenerator() {
+            @Override public String generateMAC(String input) {
+                return "noodles";
+            }
+        });
+        Ticket ticket = ticketFactory.unmarshal("a1,b2,xnoodles");
+        ticket.get('b').set(0, "3");
+        assertEquals("a1,b3,xnoodles", ticketFactory.marshal(ticket));
+    }
+
+    @Test(expected = UnsupportedOperationException.class) public void values_of_absent_key_cannot_be_added_through_list() throws Exception {
+        new Ticket().get('a').add("1");
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void rejects_mac_key() throws Exception {
+        new Ticket().add('x', "1");
+    }
+
+    private static List<Character> chars(String input) {
+        List<Character> result = new ArrayList<Character>();
+        for (char c : input.toCharArray()) {
+            result.add(c);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+package com.timgroup.tickets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class TicketValueDictionaryTest {
+    @Test public void admits_value_on_second_sighting() {
+        TicketValueDictionary dictionary = new TicketValueDictionary(16, 32);
+        assertEquals("admin", dictionary.intern("u1,radmin,x", 4, 9));
+        assertEquals(0, dictionary.size());
+        assertEquals("admin", dictionary.intern("radmin", 1, 6));
+        assertEquals(1, dictionary.size());
+    }
+
+    @Test public void returns_canonical_instance_once_admitted() {
+        TicketValueDictionary dictionary = new TicketValueDictionary(16, 32);
+        dictionary.intern("admin", 0, 5);
+        String admitted = dictionary.intern("admin", 0, 5);
+        assertSame(admitted, dictionary.intern(new StringBuilder("admin"), 0, 5));
+        assertEquals(1, dictionary.hitCount());
+        assertEquals(2, dictionary.missCount());
+        assertEquals(1.0 / 3, dictionary.hitRate(), 1e-9);
+    }
+
+    @Test public void does_not_look_up_long_values() {
+        TicketValueDictionary dictionary = new TicketValueDictionary(16, 4);
+        dictionary.intern("xadmin", 1, 6);
+        assertNotSame(dictionary.intern("xadmin", 1, 6), dictionary.intern("xadmin", 1, 6));
+        assertEquals(0, dictionary.size());
+        assertEquals(0, dictionary.hitCount() + dictionary.missCount());
+    }
+
+    @Test public void one_off_values_do_not_evict_repeated_ones() {
+        TicketValueDictionary dictionary = new TicketValueDictionary(1, 32);
+        dictionary.intern("admin", 0, 5);
+        String admin = dictionary.intern("admin", 0, 5);
+        for (int i = 0; i < 100; i++) {
+            String id = Integer.toString(i);
+            dictionary.intern(id, 0, id.length());
+        }
+        assertSame(admin, dictionary.intern(new StringBuilder("admin"), 0, 5));
+        assertEquals(0, dictionary.evictionCount());
+    }
+
+    @Test public void repeated_value_evicts_entry_in_its_slot() {
+        TicketValueDictionary dictionary = new TicketValueDictionary(1, 32);
+        dictionary.intern("admin", 0, 5);
+        dictionary.intern("admin", 0, 5);
+        dictionary.intern("user", 0, 4);
+        String user = dictionary.intern("user", 0, 4);
+        assertSame(user, dictionary.intern(new StringBuilder("user"), 0, 4));
+        assertEquals(1, dictionary.evictionCount());
+        assertEquals(1, dictionary.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void rejects_non_positive_size() {
+        new TicketValueDictionary(0, 32);
+    }
+}
@@ -0,0 +1,96 @@
+package com.timgroup.tickets;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TicketWriterTest {
+    private final TicketFactory ticketFactory = new TicketFactory(HashMacGenerator.sha1("secret", 0, 4));
+
+    @Test public void writes_same_string_as_marshal() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "1344808e-5029-489b-9f44-c95923e81da0");
+        ticket.add('r', "admin");
+        ticket.add('r', "a,b \u00a3\u20ac");
+        StringBuilder output = new StringBuilder();
+        ticketFactory.newWriter(output)
+                .add('u', "1344808e-5029-489b-9f44-c95923e81da0")
+                .add('r', "admin")
+                .add('r', "a,b \u00a3\u20ac")
+                .finish();
+        assertEquals(ticketFactory.marshal(ticket), output.toString());
+    }
+
+    @Test public void writes_empty_ticket() throws Exception {
+        StringBuilder output = new StringBuilder();
+        ticketFactory.newWriter(output).finish();
+        assertEquals(ticketFactory.marshal(new Ticket()), output.toString());
+    }
+
+    @Test public void writes_long_values_in_chunks() throws Exception {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            value.append("{\"n\": ").append(i).append(", \"c\": \"\u20ac\"}");
+        }
+        StringBuilder output = new StringBuilder();
+        TicketWriter writer = ticketFactory.newWriter(output);
+        for (int i = 0; i < 3; i++) {
+            writer.add('j', value.toString());
+        }
+        writer.finish();
+        assertEquals(Arrays.asList(value.toString(), value.toString(), value.toString()), ticketFactory.unmarshal(output.toString()).get('j'));
+    }
+
+    @Test public void writes_to_output_stream_and_byte_buffer() throws Exception {
+        Ticket ticket = new Ticket();
+        ticket.add('u', "alice");
+        ticket.add('\u00e9', "caf\u00e9");
+        String expected = ticketFactory.marshal(ticket);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ticketFactory.newWriter(stream).add('u', "alice").add('\u00e9', "caf\u00e9").finish();
+        assertEquals(expected, new String(stream.toByteArray(), StandardCharsets.UTF_8));
+
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        ticketFactory.newWriter(buffer).add('u', "alice").add('\u00e9', "caf\u00e9").finish();
+        buffer.flip();
+        assertEquals(expected, StandardCharsets.UTF_8.decode(buffer).toString());
+    }
+
+    @Test public void writes_with_mac_generators_that_are_not_incremental() throws Exception {
+        TicketFactory dummyFactory = new TicketFactory(new TicketMacGenerator() {
+            @Override public String generateMAC(String input) {
+                return Integer.toHexString(input.hashCode());
+            }
+        });
+        Ticket ticket = new Ticket();
+        ticket.add('a', "1");
+        ticket.add('b', "2");
+        StringBuilder output = new StringBuilder();
+        dummyFactory.newWriter(output).add('a', "1").add('b', "2").finish();
+        assertEquals(dummyFactory.marshal(ticket), output.toString());
+    }
+
+    @Test public void writes_with_key_ring() throws Exception {
+        KeyRingMacGenerator keyRing = new KeyRingMacGenerator("k1", HashMacGenerator.sha1("secret", 0, 4));
+        TicketFactory keyRingFactory = new TicketFactory(keyRing);
+        StringBuilder output = new StringBuilder();
+        keyRingFactory.newWriter(output).add('u', "alice").finish();
+        assertEquals(Arrays.asList("alice"), keyRingFactory.unmarshal(output.toString()).get('u'));
+    }
+
+    @Test(expected = IllegalStateException.class) public void cannot_add_after_finishing() throws Exception {
+        TicketWriter writer = ticketFactory.newWriter(new StringBuilder());
+        writer.finish();
+        writer.add('a', "1");
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void rejects_mac_key() throws Exception {
+        ticketFactory.newWriter(new StringBuilder()).add('x', "1");
+    }
+}